@@ -0,0 +1,57 @@
+package io.github.rainvaporeon.chess.fish.bench;
+
+import io.github.rainvaporeon.chess.fish.internal.utils.Bits;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import static io.github.rainvaporeon.chess.fish.game.Piece.*;
+
+/**
+ * Benchmarks of sliding attack lookups from every square of every position
+ * of {@link Corpus}, the magic tables behind {@link Bits#getRayAttackMagic(long, int, int)}
+ * against the ray walking of {@link Bits#getRayAttack(long, int, int)}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+@State(Scope.Thread)
+public class BitsBenchmark {
+    @Param({"ROOK", "BISHOP", "QUEEN"})
+    public String piece;
+
+    private int type;
+
+    @Setup
+    public void setup() {
+        type = switch (piece) {
+            case "ROOK" -> ROOK;
+            case "BISHOP" -> BISHOP;
+            case "QUEEN" -> QUEEN;
+            default -> throw new IllegalArgumentException(STR."not a sliding piece: \{piece}");
+        };
+    }
+
+    @Benchmark
+    public void getRayAttackMagic(Corpus corpus, Blackhole hole) {
+        for(int i = 0; i < corpus.size(); i++) {
+            long occupied = corpus.occupied[i];
+            for(int square = 0; square < 64; square++) {
+                hole.consume(Bits.getRayAttackMagic(occupied, square, type));
+            }
+        }
+    }
+
+    @Benchmark
+    public void getRayAttack(Corpus corpus, Blackhole hole) {
+        for(int i = 0; i < corpus.size(); i++) {
+            long occupied = corpus.occupied[i];
+            for(int square = 0; square < 64; square++) {
+                hole.consume(Bits.getRayAttack(occupied, square, type));
+            }
+        }
+    }
+}
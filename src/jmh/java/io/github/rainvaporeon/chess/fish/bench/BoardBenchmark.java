@@ -0,0 +1,93 @@
+package io.github.rainvaporeon.chess.fish.bench;
+
+import io.github.rainvaporeon.chess.fish.game.FEN;
+import io.github.rainvaporeon.chess.fish.game.utils.board.BoardMap;
+import io.github.rainvaporeon.chess.fish.game.utils.game.Move;
+import io.github.rainvaporeon.chess.fish.internal.game.eval.BoardEvaluator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import static io.github.rainvaporeon.chess.fish.game.Piece.QUEEN;
+
+/**
+ * Benchmarks of board queries and updates over the positions of {@link Corpus}.
+ * Run with {@code java -jar target/benchmarks.jar BoardBenchmark} after
+ * building with {@code mvn -Pjmh package}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-preview")
+public class BoardBenchmark {
+
+    @Benchmark
+    public void canMove(Corpus corpus, Blackhole hole) {
+        for(int i = 0; i < corpus.size(); i++) {
+            Move move = corpus.moves[i];
+            hole.consume(corpus.boards[i].canMove(move.sourcePos(), move.destPos()));
+        }
+    }
+
+    @Benchmark
+    public void getAllValidMoves(Corpus corpus, Blackhole hole) {
+        for(int i = 0; i < corpus.size(); i++) {
+            hole.consume(corpus.generators[i].getAllValidMoves());
+        }
+    }
+
+    @Benchmark
+    public void fork(Corpus corpus, Blackhole hole) {
+        for(int i = 0; i < corpus.size(); i++) {
+            hole.consume(corpus.boards[i].fork());
+        }
+    }
+
+    // The move is taken back right after, so every invocation sees the same positions.
+    // No snapshot is published, see publishSnapshot for that cost
+    @Benchmark
+    public void update(Corpus corpus, Blackhole hole) {
+        for(int i = 0; i < corpus.size(); i++) {
+            BoardMap board = corpus.boards[i];
+            hole.consume(board.tryUpdate(corpus.moves[i], QUEEN, false));
+            board.unmakeMove();
+        }
+    }
+
+    @Benchmark
+    public void publishSnapshot(Corpus corpus, Blackhole hole) {
+        for(int i = 0; i < corpus.size(); i++) {
+            hole.consume(corpus.boards[i].publishSnapshot());
+        }
+    }
+
+    @Benchmark
+    public void evaluate(Corpus corpus, Blackhole hole) {
+        for(int i = 0; i < corpus.size(); i++) {
+            hole.consume(new BoardEvaluator(corpus.boards[i]).evaluate());
+        }
+    }
+
+    @Benchmark
+    public void fenLoad(Corpus corpus, Blackhole hole) {
+        for(int i = 0; i < corpus.size(); i++) {
+            hole.consume(FEN.load(corpus.fens[i]));
+        }
+    }
+
+    @Benchmark
+    public void fenGet(Corpus corpus, Blackhole hole) {
+        for(int i = 0; i < corpus.size(); i++) {
+            hole.consume(FEN.get(corpus.setups[i]));
+        }
+    }
+
+    @Benchmark
+    public void toFENString(Corpus corpus, Blackhole hole) {
+        for(int i = 0; i < corpus.size(); i++) {
+            hole.consume(corpus.boards[i].toFENString());
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package io.github.rainvaporeon.chess.fish.bench;
+
+import com.google.gson.JsonElement;
+import io.github.rainvaporeon.chess.fish.game.FEN;
+import io.github.rainvaporeon.chess.fish.game.utils.MoveGenerator;
+import io.github.rainvaporeon.chess.fish.game.utils.board.BoardMap;
+import io.github.rainvaporeon.chess.fish.game.utils.game.Move;
+import io.github.rainvaporeon.chess.fish.game.utils.game.MoveStatus;
+import io.github.rainvaporeon.chess.fish.internal.utils.resources.Resources;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static io.github.rainvaporeon.chess.fish.game.Piece.BLACK;
+import static io.github.rainvaporeon.chess.fish.game.Piece.WHITE;
+import static io.github.rainvaporeon.chess.fish.game.utils.GameConstants.WHITE_TURN;
+
+/**
+ * The positions of {@code fen_test.json}, loaded once per trial. Every
+ * benchmark runs over the whole corpus per invocation, so scores are
+ * per corpus rather than per position.
+ */
+@State(Scope.Thread)
+public class Corpus {
+    String[] fens;
+    int[][] setups;
+    /**
+     * The boards facing the side to play
+     */
+    BoardMap[] boards;
+    MoveGenerator[] generators;
+    /**
+     * A legal move of each board, the first one generated
+     */
+    Move[] moves;
+    long[] occupied;
+
+    @Setup(Level.Trial)
+    public void load() {
+        List<String> list = new ArrayList<>();
+        for(JsonElement element : Resources.getAsJson("fen_test.json").getAsJsonArray()) {
+            list.add(element.getAsJsonObject().get("fen").getAsString());
+        }
+        int size = list.size();
+        fens = list.toArray(String[]::new);
+        setups = new int[size][];
+        boards = new BoardMap[size];
+        generators = new MoveGenerator[size];
+        moves = new Move[size];
+        occupied = new long[size];
+        for(int i = 0; i < size; i++) {
+            setups[i] = FEN.load(fens[i]);
+            BoardMap board = BoardMap.fromFENString(fens[i]);
+            int color = board.getTurn() == WHITE_TURN ? WHITE : BLACK;
+            boards[i] = board.getColor() == color ? board : board.getEnemyBoard();
+            generators[i] = MoveGenerator.create(boards[i]);
+            moves[i] = generators[i].getAllValidMoves().getFirst();
+            // BoardBenchmark#update takes the move back unconditionally, so it has to be accepted
+            if(!MoveStatus.isSuccess(boards[i].tryUpdate(moves[i]))) {
+                throw new IllegalStateException(STR."move \{moves[i]} rejected at \{fens[i]}");
+            }
+            boards[i].unmakeMove();
+            occupied[i] = boards[i].getBlockers();
+        }
+    }
+
+    public int size() {
+        return fens.length;
+    }
+}
@@ -2,6 +2,7 @@ package io.github.rainvaporeon.chess.fish;
 
 import io.github.rainvaporeon.chess.fish.game.utils.board.BoardMap;
 import io.github.rainvaporeon.chess.fish.game.utils.board.Magic;
+import io.github.rainvaporeon.chess.fish.game.utils.board.Zobrist;
 import io.github.rainvaporeon.chess.fish.internal.InternLogger;
 import io.github.rainvaporeon.chess.fish.internal.command.ConsoleCommand;
 import io.github.rainvaporeon.chess.fish.internal.exceptions.SystemError;
@@ -28,6 +29,7 @@ public class Main {
         registerLaunchOptions(SystemError.class, () -> Pair.of("system.error", _ -> {
         }));
         registerLaunchOptions(ConsoleCommand.class, () -> Pair.of("debug-mode", _ -> ConsoleCommand.init()));
+        registerLaunchOptions(Zobrist.class, () -> Pair.of("zobrist.verify", s -> Zobrist.setVerify(Boolean.parseBoolean(s))));
 
         try {
             LaunchArgs.init();
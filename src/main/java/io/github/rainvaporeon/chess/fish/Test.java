@@ -1,15 +1,27 @@
 package io.github.rainvaporeon.chess.fish;
 
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import io.github.rainvaporeon.chess.fish.game.FEN;
 import io.github.rainvaporeon.chess.fish.game.Piece;
+import io.github.rainvaporeon.chess.fish.game.utils.EndType;
 import io.github.rainvaporeon.chess.fish.game.utils.MoveGenerator;
+import io.github.rainvaporeon.chess.fish.game.utils.MoveList;
+import io.github.rainvaporeon.chess.fish.game.utils.MovePicker;
+import io.github.rainvaporeon.chess.fish.game.utils.Perft;
+import io.github.rainvaporeon.chess.fish.game.utils.PerftCache;
 import io.github.rainvaporeon.chess.fish.game.utils.board.AttackTable;
 import io.github.rainvaporeon.chess.fish.game.utils.board.BoardMap;
+import io.github.rainvaporeon.chess.fish.game.utils.board.BoardSnapshot;
 import io.github.rainvaporeon.chess.fish.game.utils.board.Magic;
+import io.github.rainvaporeon.chess.fish.game.utils.board.Position;
+import io.github.rainvaporeon.chess.fish.game.utils.board.Zobrist;
 import io.github.rainvaporeon.chess.fish.internal.game.eval.BoardEvaluator;
 import io.github.rainvaporeon.chess.fish.game.utils.game.Move;
+import io.github.rainvaporeon.chess.fish.game.utils.game.MoveStatus;
 import io.github.rainvaporeon.chess.fish.game.utils.game.MovementEvent;
+import io.github.rainvaporeon.chess.fish.game.utils.game.PackedMove;
+import io.github.rainvaporeon.chess.fish.game.utils.game.UCI;
 import io.github.rainvaporeon.chess.fish.internal.InternLogger;
 import io.github.rainvaporeon.chess.fish.internal.jnative.NativeMagicBoard;
 import io.github.rainvaporeon.chess.fish.internal.utils.Bits;
@@ -18,10 +30,13 @@ import io.github.rainvaporeon.chess.fish.internal.utils.resources.Resources;
 import com.spiritlight.fishutils.misc.ThrowingRunnable;
 import com.spiritlight.fishutils.utils.Stopwatch;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Objects;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 import java.util.stream.StreamSupport;
 
 import static io.github.rainvaporeon.chess.fish.game.Piece.*;
@@ -34,6 +49,7 @@ import static io.github.rainvaporeon.chess.fish.game.utils.GameConstants.*;
 public class Test {
     public static void main(String[] args) {
         InternLogger.setEnabled(true);
+        Zobrist.setVerify(true);
 
         Stopwatch timer = new Stopwatch();
         timer.start();
@@ -96,6 +112,33 @@ public class Test {
         timer.fence("test.extremes");
         testExtremeCases();
         timer.record("test.extremes");
+        timer.fence("test.repetition");
+        testRepetition();
+        timer.record("test.repetition");
+        timer.fence("test.forced");
+        testForcedMoves();
+        timer.record("test.forced");
+        timer.fence("test.snapshot");
+        testSnapshot();
+        timer.record("test.snapshot");
+        timer.fence("test.uci");
+        testUci();
+        timer.record("test.uci");
+        timer.fence("test.codec");
+        testCodec();
+        timer.record("test.codec");
+        timer.fence("test.position");
+        testPosition();
+        timer.record("test.position");
+        timer.fence("test.material");
+        testMaterial();
+        timer.record("test.material");
+        timer.fence("test.picker");
+        testPicker();
+        timer.record("test.picker");
+        timer.fence("test.perft");
+        testPerft();
+        timer.record("test.perft");
         System.out.println(timer.getRecordString());
         System.out.println("All test case passed! Congratulations!");
     }
@@ -117,6 +160,182 @@ public class Test {
         assertEquals(gen.getAllValidMoves().size(), 265, "Extreme case move possibility failed");
     }
 
+    private static void testRepetition() {
+        // the en passant square after 1.e4 cannot be captured onto, so it does not tell the positions apart
+        BoardMap map = BoardMap.initialize();
+        for(String move : new String[] {"e2,e4", "g8,f6", "g1,f3", "f6,g8", "f3,g1", "g8,f6", "g1,f3", "f6,g8", "f3,g1"}) {
+            assertTrue(map.update(Move.of(move)).validate(), STR."Repetition move \{move} failed");
+        }
+        assertEquals(map.getRepetitions(), 2, "Repetition after a double push missed");
+        assertEquals(map.getGameState().getValue(), EndType.DRAW_REPETITION, "Threefold repetition not detected");
+
+        assertEquals(BoardMap.fromFENString("rnbqkbnr/pppppppp/8/8/4P3/8/PPPP1PPP/RNBQKBNR b KQkq e3 0 1").getHash(),
+                BoardMap.fromFENString("rnbqkbnr/pppppppp/8/8/4P3/8/PPPP1PPP/RNBQKBNR b KQkq - 0 1").getHash(),
+                "Uncapturable en passant square changed the hash");
+        assertNotEquals(BoardMap.fromFENString("rnbqkbnr/ppp1pppp/8/8/3pP3/8/PPPP1PPP/RNBQKBNR b KQkq e3 0 1").getHash(),
+                BoardMap.fromFENString("rnbqkbnr/ppp1pppp/8/8/3pP3/8/PPPP1PPP/RNBQKBNR b KQkq - 0 1").getHash(),
+                "Capturable en passant square did not change the hash");
+    }
+
+    private static void testForcedMoves() {
+        // white is in check, forced black moves are judged by the black king instead
+        BoardMap map = BoardMap.fromFENString("4k3/p6R/8/8/8/8/8/r3K3 w - - 0 1");
+        assertEquals(MoveStatus.status(map.tryForceUpdate(Move.of("e8,d7"))), MoveStatus.REVEALS_CHECK, "Forced king move into check accepted");
+        assertEquals(MoveStatus.status(map.tryForceUpdate(Move.of("a7,a6"))), MoveStatus.OK, "Forced off-turn move judged by the wrong king");
+        assertEquals(map.toFENString(), "4k3/7R/p7/8/8/8/8/r3K3 b - - 0 2", "Forced off-turn move mismatch");
+        // either facade plays the side to move
+        BoardMap black = BoardMap.fromFENString("4k3/8/8/8/8/8/8/4K3 b - - 0 1").getEnemyBoard();
+        assertEquals(MoveStatus.status(black.tryUpdate(Move.of("e8,d8"))), MoveStatus.OK, "Black move through the black board rejected");
+        assertEquals(MoveStatus.status(black.tryUpdate(Move.of("e1,d1"))), MoveStatus.OK, "White move through the black board rejected");
+    }
+
+    private static void testSnapshot() {
+        BoardMap map = BoardMap.initialize();
+        BoardSnapshot before = map.getSnapshot();
+        String fen = before.toFENString();
+        long hash = before.getHash();
+        int moves = before.getAllValidMoves().size();
+        assertTrue(map.update(Move.of("e2,e4")).validate(), "Snapshot move failed");
+        assertEquals(before.toFENString(), fen, "Snapshot FEN changed with the live board");
+        assertEquals(before.getHash(), hash, "Snapshot hash changed with the live board");
+        assertEquals(before.getAllValidMoves().size(), moves, "Snapshot moves changed with the live board");
+        assertEquals(map.getSnapshot().toFENString(), map.toFENString(), "Snapshot not published after a move");
+        assertEquals(map.getSnapshot().getHash(), map.getHash(), "Published snapshot hash mismatch");
+        for(int i = 0; i < 8; i++) {
+            map.forceUpdate(Move.of(i % 2 == 0 ? "g8,f6" : "f6,g8"));
+        }
+        assertEquals(map.fork().getSnapshot(), null, "Fork carried the snapshot over");
+        // the history stays behind, so the repetition has to be decided on publication
+        assertEquals(map.getSnapshot().getGameState().getValue(), EndType.DRAW_REPETITION, "Snapshot missed the repetition");
+        assertEquals(map.getSnapshot().toPosition(), map.toPosition(), "Snapshot position mismatch");
+        BoardSnapshot published = map.getSnapshot();
+        assertEquals(MoveStatus.status(map.tryUpdate(Move.of("d7,d5"))), MoveStatus.OK, "Snapshot try move failed");
+        assertTrue(map.getSnapshot() == published, "Plain try update published a snapshot");
+    }
+
+    private static void testUci() {
+        assertEquals(UCI.toString(UCI.parse("e2e4")), "e2e4", "UCI round trip failed");
+        assertEquals(UCI.toString(UCI.parse("e7e8q")), "e7e8q", "UCI promotion round trip failed");
+        assertEquals(PackedMove.promotion(UCI.parse("e7e8q")), QUEEN, "UCI promotion not parsed");
+        assertFail(() -> UCI.parse("e9e4"), "UCI accepted an off-board square", new IllegalArgumentException());
+        assertFail(() -> UCI.parse("e7e8k"), "UCI accepted a king promotion", new IllegalArgumentException());
+        assertFail(() -> UCI.parse("e2e"), "UCI accepted a short move", new IllegalArgumentException());
+        assertFail(() -> UCI.parse("e7e8qq"), "UCI accepted a long move", new IllegalArgumentException());
+
+        BoardMap castle = BoardMap.fromFENString("r3k2r/8/8/8/8/8/8/R3K2R w KQkq - 0 1");
+        assertEquals(UCI.play(castle, "e1g1 e8c8"), 2, "UCI castling not played");
+        assertEquals(castle.toFENString(), "2kr3r/8/8/8/8/8/8/R4RK1 w - - 2 2", "UCI castling mismatch");
+        BoardMap promote = BoardMap.fromFENString("8/P6k/8/8/8/8/8/K7 w - - 0 1");
+        assertEquals(UCI.play(promote, "a7a8n"), 1, "UCI under-promotion not played");
+        assertEquals(promote.toFENString(), "N7/7k/8/8/8/8/8/K7 b - - 0 1", "UCI under-promotion mismatch");
+        assertEquals(promote.getSnapshot().toFENString(), promote.toFENString(), "UCI play did not publish the snapshot");
+        BoardMap illegal = BoardMap.initialize();
+        assertFail(() -> UCI.play(illegal, "e2e4 e2e4"), "UCI played an illegal move", new IllegalArgumentException());
+        assertEquals(illegal.toFENString(), "rnbqkbnr/pppppppp/8/8/4P3/8/PPPP1PPP/RNBQKBNR b KQkq e3 0 1", "UCI moves before the illegal one not kept");
+    }
+
+    private static void testCodec() {
+        ByteBuffer buffer = ByteBuffer.allocate(BoardMap.SERIALIZED_SIZE);
+        BoardMap target = BoardMap.initialize();
+        forEachPosition(2, board -> {
+            buffer.clear();
+            board.writeTo(buffer);
+            buffer.flip();
+            target.readFrom(buffer);
+            if(!target.toFENString().equals(board.toFENString()) || target.getHash() != board.getHash()) {
+                assertEquals(target.toFENString(), board.toFENString(), "Codec FEN round trip failed");
+                assertEquals(target.getHash(), board.getHash(), "Codec hash round trip failed");
+            }
+        });
+    }
+
+    private static void testPosition() {
+        MoveList list = new MoveList();
+        forEachPosition(2, board -> {
+            Position position = board.toPosition();
+            list.clear();
+            MoveGenerator.create(board).generate(list);
+            for(int i = 0; i < list.size(); i++) {
+                int move = list.get(i);
+                Position next = position.withMove(move);
+                board.makeMove(move);
+                if(!next.equals(board.toPosition()) || next.getHash() != board.getHash()) {
+                    assertEquals(next.toString(), board.toFENString(), "Position move mismatch");
+                    assertEquals(next.getHash(), board.getHash(), "Position hash mismatch");
+                }
+                board.unmakeMove();
+            }
+        });
+    }
+
+    // Visits every position of fen_test.json and those reached from them up to the depth
+    private static void forEachPosition(int depth, Consumer<BoardMap> action) {
+        for(JsonElement element : Resources.getAsJson("fen_test.json").getAsJsonArray()) {
+            BoardMap board = BoardMap.fromFENString(element.getAsJsonObject().get("fen").getAsString());
+            forEachPosition(board, MoveGenerator.create(board), depth, 0, action);
+        }
+    }
+
+    private static void forEachPosition(BoardMap board, MoveGenerator generator, int depth, int ply, Consumer<BoardMap> action) {
+        action.accept(board);
+        if(depth == 0) return;
+        MoveList list = generator.generate(ply);
+        for(int i = 0; i < list.size(); i++) {
+            board.makeMove(list.get(i));
+            forEachPosition(board, generator, depth - 1, ply + 1, action);
+            board.unmakeMove();
+        }
+    }
+
+    private static void testMaterial() {
+        assertTrue(BoardMap.fromFENString("4k3/8/8/8/8/8/8/4K3 w - - 0 1").isInsufficientMaterial(), "K vs K not a draw");
+        assertTrue(BoardMap.fromFENString("4k3/8/8/8/8/8/8/1N2K3 w - - 0 1").isInsufficientMaterial(), "KN vs K not a draw");
+        assertTrue(BoardMap.fromFENString("4kb2/8/8/8/8/8/8/2B1K3 w - - 0 1").isInsufficientMaterial(), "Same colored bishops not a draw");
+        assertFalse(BoardMap.fromFENString("2b1k3/8/8/8/8/8/8/2B1K3 w - - 0 1").isInsufficientMaterial(), "Opposite colored bishops drawn");
+        // a mate with two knights cannot be forced, but can still happen
+        BoardMap knights = BoardMap.fromFENString("4k3/8/8/8/8/8/8/1N2KN2 w - - 0 1");
+        assertFalse(knights.isInsufficientMaterial(), "KNN vs K drawn");
+        assertEquals(knights.getGameState().getValue(), EndType.IN_PROGRESS, "KNN vs K ended");
+        assertEquals(BoardMap.fromFENString("4kb2/8/8/8/8/8/8/2B1K3 w - - 0 1").getGameState().getValue(),
+                EndType.DRAW_INSUFFICIENT_MATERIAL, "Insufficient material not reported");
+    }
+
+    private static void testPicker() {
+        MoveList legal = new MoveList();
+        MoveList picked = new MoveList();
+        forEachPosition(2, board -> {
+            MoveGenerator generator = MoveGenerator.create(board);
+            legal.clear();
+            generator.generate(legal);
+            int ttMove = legal.isEmpty() ? MovePicker.NO_MOVE : legal.get(0);
+            int killer = legal.isEmpty() ? MovePicker.NO_MOVE : legal.get(legal.size() - 1);
+            for(int[] hints : new int[][] {{MovePicker.NO_MOVE, MovePicker.NO_MOVE}, {ttMove, killer}}) {
+                picked.clear();
+                MovePicker picker = generator.picker(0, hints[0], hints[1], MovePicker.NO_MOVE);
+                for(int move = picker.next(); move != MovePicker.NO_MOVE; move = picker.next()) {
+                    if(!legal.contains(move) || picked.contains(move)) {
+                        throw new AssertionError(STR."Picker handed out \{UCI.toString(move)} twice or illegally at \{board.toFENString()}");
+                    }
+                    picked.add(move);
+                }
+                if(picked.size() != legal.size()) {
+                    assertEquals(picked.toString(), legal.toString(), "Picker moves mismatch");
+                }
+            }
+        });
+    }
+
+    private static void testPerft() {
+        Perft.create(BoardMap.initialize()).divide(3, System.out);
+        Perft.Result result = Perft.runSuite("fen_test.json", System.out);
+        assertEquals(result.failed(), 0, "Perft suite mismatch");
+        Perft.Result parallel = Perft.runSuite("fen_test.json", System.out, ForkJoinPool.commonPool());
+        assertEquals(parallel.failed(), 0, "Parallel perft suite mismatch");
+        PerftCache cache = PerftCache.create(16);
+        assertEquals(Perft.create(BoardMap.initialize(), cache).count(5), 4865609L, "Cached perft mismatch");
+        System.out.println(cache);
+    }
+
     private static void dumpMagic() {
         for(int i = 0; i < 64; i++) {
             long blockerPattern = genRandomLongBits();
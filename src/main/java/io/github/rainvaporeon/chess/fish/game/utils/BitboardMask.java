@@ -2,6 +2,12 @@ package io.github.rainvaporeon.chess.fish.game.utils;
 
 public class BitboardMask {
     public static final long FILE_MASK = 0x0101010101010101L;
+    /**
+     * The dark squares, a1 being one of them
+     */
+    public static final long DARK_SQUARES = 0xAA55AA55AA55AA55L;
+    public static final long LIGHT_SQUARES = ~DARK_SQUARES;
+
     public static long getFileMask(int file) {
         return FILE_MASK << file;
     }
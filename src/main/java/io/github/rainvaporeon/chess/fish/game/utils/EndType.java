@@ -13,6 +13,10 @@ public enum EndType {
      * This rule occurs if the half-move clock accumulates to 100.
      */
     DRAW_50_MOVE,
+    /**
+     * This rule occurs if the same position occurs for the third time.
+     */
+    DRAW_REPETITION,
     DRAW_INSUFFICIENT_MATERIAL,
     DRAW_TIMEOUT_INSUFFICIENT_MATERIAL,
 
@@ -1,94 +1,128 @@
 package io.github.rainvaporeon.chess.fish.game.utils;
 
-import com.spiritlight.fishutils.collections.IntList;
-import io.github.rainvaporeon.chess.fish.game.Piece;
-import io.github.rainvaporeon.chess.fish.game.utils.board.AttackTable;
 import io.github.rainvaporeon.chess.fish.game.utils.board.BoardMap;
 import io.github.rainvaporeon.chess.fish.game.utils.game.Move;
-import io.github.rainvaporeon.chess.fish.internal.InternLogger;
-import io.github.rainvaporeon.chess.fish.internal.utils.Bits;
 
-import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 
-import static io.github.rainvaporeon.chess.fish.game.Piece.NONE;
-import static io.github.rainvaporeon.chess.fish.game.Piece.PAWN;
+import static io.github.rainvaporeon.chess.fish.game.Piece.BLACK;
+import static io.github.rainvaporeon.chess.fish.game.Piece.WHITE;
+import static io.github.rainvaporeon.chess.fish.game.utils.GameConstants.WHITE_TURN;
 
 public class MoveGenerator {
+    /**
+     * The deepest ply a generator holds a move list for
+     */
+    public static final int MAX_PLY = 128;
+
     /**
      * The bitboard.
      */
     private final BoardMap bitboard;
     /**
-     * The board cursor.
-     * The byte range is denoted by
-     * <pre>
-     * 00000000 00000000 00000000 00000000
-     *      UNUSED      |  PIECE | INDEX
-     * </pre>
-     * with the piece following the standard
-     * number denoted in {@link io.github.rainvaporeon.chess.fish.game.Piece},
-     * color excluded.
+     * The move lists, one per ply, created on first use
+     * and reused afterward.
+     */
+    private final MoveList[] stack;
+    /**
+     * The move pickers, one per ply, created on first use
+     * and reused afterward.
      */
-    private int cursor; /* unused */
+    private final MovePicker[] pickers;
 
     private MoveGenerator(BoardMap board) {
         this.bitboard = board;
-        this.cursor = 0;
+        this.stack = new MoveList[MAX_PLY];
+        this.pickers = new MovePicker[MAX_PLY];
     }
 
     /**
-     * Gets all valid moves
-     * @return
+     * Gets the move list reserved for the ply, cleared. The list stays
+     * valid until this method is called again with the same ply.
+     * @param ply the ply, from 0 to {@link MoveGenerator#MAX_PLY} exclusive
+     * @return the list
      */
-    public List<Move> getAllValidMoves() {
-        List<Move> totalMoves = new LinkedList<>();
-        for(int i = 0; i < 64; i++) {
-            totalMoves.addAll(this.getValidMovesFor(i));
-        }
-        return totalMoves;
+    public MoveList list(int ply) {
+        MoveList list = stack[ply];
+        if(list == null) stack[ply] = list = new MoveList();
+        list.clear();
+        return list;
     }
 
-    public List<Move> getValidMovesFor(int index) {
-        return getValidMovesFor(index, false);
+    /**
+     * Gets the move picker reserved for the ply, set up to hand out the
+     * moves of the side to play in stages. The picker stays valid until
+     * this method is called again with the same ply.
+     * @param ply the ply, from 0 to {@link MoveGenerator#MAX_PLY} exclusive
+     * @param ttMove the move from the transposition table, or {@link MovePicker#NO_MOVE}
+     * @param killer1 the first killer move, or {@link MovePicker#NO_MOVE}
+     * @param killer2 the second killer move, or {@link MovePicker#NO_MOVE}
+     * @return the picker
+     */
+    public MovePicker picker(int ply, int ttMove, int killer1, int killer2) {
+        MovePicker picker = pickers[ply];
+        if(picker == null) pickers[ply] = picker = new MovePicker();
+        return picker.reset(this.sideToPlay(), ttMove, killer1, killer2);
+    }
+
+    /**
+     * Generates all valid moves of the side to play into the list
+     * reserved for the ply
+     * @param ply the ply
+     * @return the list, see {@link MoveGenerator#list(int)}
+     */
+    public MoveList generate(int ply) {
+        MoveList list = this.list(ply);
+        this.generate(list);
+        return list;
+    }
+
+    /**
+     * Generates all valid moves of the side to play, appending them to the list.
+     * Promotions are added once per piece that can be promoted to.
+     * @see BoardMap#generateMoves(MoveList, long, long)
+     * @param list the list
+     * @return the amount of moves in the list
+     */
+    public int generate(MoveList list) {
+        return this.sideToPlay().generateMoves(list);
+    }
+
+    /**
+     * Generates the valid moves of the piece on the square, appending them
+     * to the list. Nothing is added unless the piece belongs to the side to play.
+     * @param square the square, from 0 to 63
+     * @param list the list
+     * @return the amount of moves in the list
+     */
+    public int generate(int square, MoveList list) {
+        return this.sideToPlay().generateMoves(list, 1L << square, -1L);
+    }
+
+    /**
+     * Gets all valid moves
+     * @return a list of possible moves
+     */
+    public List<Move> getAllValidMoves() {
+        MoveList list = new MoveList();
+        this.generate(list);
+        return list.toMoves();
     }
 
     /**
      * Gets all valid moves for the given index
      * @param index the index
-     * @param bits whether to use bitboard approach
      * @return a list of possible moves
      */
-    public List<Move> getValidMovesFor(int index, boolean bits) {
-        // TODO: Bits mode will fail at the extreme case test case
-        if(bits) {
-            int piece = bitboard.getPieceAt(index);
-            if(Piece.is(piece, PAWN)) return processPawn(index);
-            if(Piece.is(piece, NONE)) return Collections.emptyList();
-            int[] possibleDestinations = Bits.bitList(Piece.isSlidingPiece(piece) ? Bits.getRayAttackMagic(bitboard.getBlockers() & ~(Piece.color(piece) == bitboard.getColor() ? bitboard.getSelfBlocker() : bitboard.getEnemyBoard().getSelfBlocker()), index, piece) : AttackTable.getDirect(piece, index));
-            List<Move> moves = new LinkedList<>();
-            for(int move : possibleDestinations) {
-                if(bitboard.canMove(index, move)) moves.add(Move.of(index, move));
-            }
-            return moves;
-        }
-
-        IntList list = new IntList(8);
-        for(int i = 0; i < 64; i++) {
-            if(bitboard.canMove(index, i, true)) list.add(i);
-        }
-        return list.stream().map(path -> Move.of(index, path)).toList();
+    public List<Move> getValidMovesFor(int index) {
+        MoveList list = new MoveList();
+        this.generate(index, list);
+        return list.toMoves();
     }
 
-    private List<Move> processPawn(int index) {
-        List<Move> moves = new LinkedList<>();
-        final int[] possibleMoves = {1, -1, 8, -8, 9, -9, 7, -7};
-        for(int move : possibleMoves) {
-            if(bitboard.canMove(index, index + move)) moves.add(Move.of(index, index + move));
-        }
-        if(moves.size() > 3) InternLogger.getLogger().warn(STR."P@\{Move.parseLocation(index)} has more than 3 moves: \{moves.toString()}");
-        return moves;
+    private BoardMap sideToPlay() {
+        int color = bitboard.getTurn() == WHITE_TURN ? WHITE : BLACK;
+        return bitboard.getColor() == color ? bitboard : bitboard.getEnemyBoard();
     }
 
     public static MoveGenerator create(BoardMap map) {
@@ -0,0 +1,113 @@
+package io.github.rainvaporeon.chess.fish.game.utils;
+
+import io.github.rainvaporeon.chess.fish.game.utils.game.Move;
+import io.github.rainvaporeon.chess.fish.game.utils.game.PackedMove;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static io.github.rainvaporeon.chess.fish.game.Piece.NONE;
+import static io.github.rainvaporeon.chess.fish.game.Piece.QUEEN;
+
+/**
+ * A reusable list of moves packed as described by {@link PackedMove},
+ * backed by a fixed array large enough for any legal position.
+ * <p>
+ * Lists are meant to be cleared and refilled rather than recreated, see
+ * {@link MoveGenerator#list(int)}.
+ */
+public final class MoveList {
+    /**
+     * The most moves a list can hold, above the 218 legal moves of the
+     * richest legal position and the 265 of the extreme test position
+     */
+    public static final int CAPACITY = 320;
+
+    private final int[] moves;
+    private int size;
+
+    public MoveList() {
+        this.moves = new int[CAPACITY];
+    }
+
+    public void add(int move) {
+        moves[size++] = move;
+    }
+
+    public int get(int index) {
+        if(index >= size) throw new IndexOutOfBoundsException(STR."index \{index} out of bounds for size \{size}");
+        return moves[index];
+    }
+
+    public void set(int index, int move) {
+        if(index >= size) throw new IndexOutOfBoundsException(STR."index \{index} out of bounds for size \{size}");
+        moves[index] = move;
+    }
+
+    public void swap(int i, int j) {
+        int move = moves[i];
+        moves[i] = moves[j];
+        moves[j] = move;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Drops every move past the given size
+     * @param size the new size, no larger than the current one
+     */
+    public void truncate(int size) {
+        if(size > this.size) throw new IndexOutOfBoundsException(STR."cannot truncate size \{this.size} to \{size}");
+        this.size = size;
+    }
+
+    public boolean contains(int move) {
+        for(int i = 0; i < size; i++) {
+            if(moves[i] == move) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Converts the list to moves. Promotions are only kept once, as
+     * {@link Move} does not carry the piece promoted to, and castling
+     * is converted to the king moving onto its rook, as expected by
+     * {@link io.github.rainvaporeon.chess.fish.game.utils.board.BoardMap#update(Move)}.
+     * @return a new list of moves
+     */
+    public List<Move> toMoves() {
+        List<Move> list = new ArrayList<>(size);
+        for(int i = 0; i < size; i++) {
+            int move = moves[i];
+            int promotion = PackedMove.promotion(move);
+            if(promotion != NONE && promotion != QUEEN) continue;
+            if(PackedMove.isCastle(move)) {
+                int rank = PackedMove.to(move) & ~7;
+                list.add(Move.of(PackedMove.from(move), rank + (PackedMove.flags(move) == PackedMove.KING_CASTLE ? 7 : 0)));
+            } else {
+                list.add(PackedMove.toMove(move));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for(int i = 0; i < size; i++) {
+            if(i != 0) builder.append(", ");
+            builder.append(PackedMove.toString(moves[i]));
+        }
+        return builder.append(']').toString();
+    }
+}
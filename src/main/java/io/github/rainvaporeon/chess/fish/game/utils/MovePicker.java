@@ -0,0 +1,199 @@
+package io.github.rainvaporeon.chess.fish.game.utils;
+
+import io.github.rainvaporeon.chess.fish.game.utils.board.BoardMap;
+import io.github.rainvaporeon.chess.fish.game.utils.game.PackedMove;
+
+import static io.github.rainvaporeon.chess.fish.game.Piece.*;
+
+/**
+ * Hands out the legal moves of a position one at a time, in the order
+ * a search would like to try them:
+ * <ol>
+ *     <li>the move from the transposition table</li>
+ *     <li>captures not losing material, most valuable victim first</li>
+ *     <li>promotions</li>
+ *     <li>killer moves</li>
+ *     <li>quiet moves</li>
+ *     <li>captures losing material</li>
+ * </ol>
+ * Each stage is only generated once the previous one runs out, so a
+ * cutoff on an early move skips generating the rest.
+ * @see MoveGenerator#picker(int, int, int, int)
+ */
+public final class MovePicker {
+    /**
+     * Returned by {@link MovePicker#next()} once every move was handed out.
+     * A move from and to a1 can never be legal.
+     */
+    public static final int NO_MOVE = 0;
+
+    private static final int TT_MOVE = 0, CAPTURES_INIT = 1, GOOD_CAPTURES = 2, PROMOTIONS = 3, KILLERS = 4, QUIETS = 5, BAD_CAPTURES = 6, DONE = 7;
+
+    private static final long RANK_1 = 0xFFL, RANK_2 = 0xFF00L, RANK_7 = 0xFFL << 48, RANK_8 = 0xFFL << 56;
+
+    private final MoveList moves = new MoveList();
+    private final MoveList badCaptures = new MoveList();
+    private final int[] scores = new int[MoveList.CAPACITY];
+
+    private BoardMap board;
+    private int ttMove;
+    private int killer1;
+    private int killer2;
+    private int stage;
+    private int index;
+
+    MovePicker() {}
+
+    /**
+     * Prepares the picker for a position
+     * @param board the board of the side to play
+     * @param ttMove the move from the transposition table, or {@link MovePicker#NO_MOVE}
+     * @param killer1 the first killer move, or {@link MovePicker#NO_MOVE}
+     * @param killer2 the second killer move, or {@link MovePicker#NO_MOVE}
+     * @return this picker
+     */
+    MovePicker reset(BoardMap board, int ttMove, int killer1, int killer2) {
+        this.board = board;
+        this.ttMove = ttMove;
+        this.killer1 = killer1;
+        this.killer2 = killer2;
+        this.stage = TT_MOVE;
+        this.index = 0;
+        moves.clear();
+        badCaptures.clear();
+        return this;
+    }
+
+    /**
+     * Gets the next move to try
+     * @return the move, see {@link PackedMove}, or {@link MovePicker#NO_MOVE} if there is none left
+     */
+    public int next() {
+        while(true) {
+            switch (stage) {
+                case TT_MOVE -> {
+                    stage = CAPTURES_INIT;
+                    if(ttMove != NO_MOVE && this.isLegal(ttMove)) return ttMove;
+                }
+                case CAPTURES_INIT -> {
+                    stage = GOOD_CAPTURES;
+                    this.generateCaptures();
+                }
+                case GOOD_CAPTURES -> {
+                    while(index < moves.size()) {
+                        int move = this.pickBest();
+                        if(move == ttMove) continue;
+                        if(board.seeAtLeast(move, 0)) return move;
+                        badCaptures.add(move);
+                    }
+                    stage = PROMOTIONS;
+                    this.generatePromotions();
+                }
+                case PROMOTIONS -> {
+                    while(index < moves.size()) {
+                        int move = moves.get(index++);
+                        if(move != ttMove) return move;
+                    }
+                    stage = KILLERS;
+                    index = 0;
+                }
+                case KILLERS -> {
+                    while(index < 2) {
+                        int killer = index++ == 0 ? killer1 : killer2;
+                        if(killer == NO_MOVE || killer == ttMove || (index == 2 && killer == killer1)) continue;
+                        if(!PackedMove.isCapture(killer) && !PackedMove.isPromotion(killer) && this.isLegal(killer)) return killer;
+                    }
+                    stage = QUIETS;
+                    this.generateQuiets();
+                }
+                case QUIETS -> {
+                    while(index < moves.size()) {
+                        int move = moves.get(index++);
+                        if(move != ttMove && move != killer1 && move != killer2) return move;
+                    }
+                    stage = BAD_CAPTURES;
+                    index = 0;
+                }
+                case BAD_CAPTURES -> {
+                    if(index < badCaptures.size()) return badCaptures.get(index++);
+                    stage = DONE;
+                }
+                default -> {
+                    return NO_MOVE;
+                }
+            }
+        }
+    }
+
+    // Whether a move from elsewhere, such as the transposition table, is legal here
+    private boolean isLegal(int move) {
+        moves.clear();
+        board.generateMoves(moves, 1L << PackedMove.from(move), 1L << PackedMove.to(move));
+        boolean legal = moves.contains(move);
+        moves.clear();
+        return legal;
+    }
+
+    private void generateCaptures() {
+        moves.clear();
+        index = 0;
+        int enPassant = board.enPassantSquare();
+        long enemy = board.getEnemyBoard().getSelfBlocker();
+        board.generateMoves(moves, -1L, enemy | (enPassant > 0 ? 1L << enPassant : 0));
+        // pieces other than pawns may step onto the en passant square, those are quiet moves
+        int size = 0;
+        for(int i = 0; i < moves.size(); i++) {
+            int move = moves.get(i);
+            if(PackedMove.isCapture(move)) moves.set(size++, move);
+        }
+        moves.truncate(size);
+        for(int i = 0; i < moves.size(); i++) {
+            int move = moves.get(i);
+            int victim = PackedMove.isEnPassant(move) ? PAWN : board.getPieceAt(PackedMove.to(move)) & PIECE_MASK;
+            int attacker = board.getPieceAt(PackedMove.from(move)) & PIECE_MASK;
+            // most valuable victim, then least valuable attacker; piece types are ordered by value
+            scores[i] = victim * 8 - attacker + (PackedMove.promotion(move) == QUEEN ? 64 : 0);
+        }
+    }
+
+    // Swaps the best scored move left to the front, selection sort style
+    private int pickBest() {
+        int best = index;
+        for(int i = index + 1; i < moves.size(); i++) {
+            if(scores[i] > scores[best]) best = i;
+        }
+        int score = scores[best];
+        scores[best] = scores[index];
+        scores[index] = score;
+        moves.swap(best, index);
+        return moves.get(index++);
+    }
+
+    private void generatePromotions() {
+        moves.clear();
+        index = 0;
+        boolean white = board.getColor() == WHITE;
+        long enemy = board.getEnemyBoard().getSelfBlocker();
+        board.generateMoves(moves, white ? RANK_7 : RANK_2, (white ? RANK_8 : RANK_1) & ~enemy);
+        // other pieces may move to the last rank as well, those are quiet moves
+        int size = 0;
+        for(int i = 0; i < moves.size(); i++) {
+            int move = moves.get(i);
+            if(PackedMove.isPromotion(move)) moves.set(size++, move);
+        }
+        moves.truncate(size);
+    }
+
+    private void generateQuiets() {
+        moves.clear();
+        index = 0;
+        board.generateMoves(moves, -1L, ~board.getEnemyBoard().getSelfBlocker());
+        // en passant lands on an empty square, and promotions were handed out before
+        int size = 0;
+        for(int i = 0; i < moves.size(); i++) {
+            int move = moves.get(i);
+            if(!PackedMove.isCapture(move) && !PackedMove.isPromotion(move)) moves.set(size++, move);
+        }
+        moves.truncate(size);
+    }
+}
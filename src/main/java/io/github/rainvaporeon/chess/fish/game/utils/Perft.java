@@ -0,0 +1,272 @@
+package io.github.rainvaporeon.chess.fish.game.utils;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.github.rainvaporeon.chess.fish.game.utils.board.BoardMap;
+import io.github.rainvaporeon.chess.fish.game.utils.game.UCI;
+import io.github.rainvaporeon.chess.fish.internal.utils.resources.Resources;
+
+import java.io.PrintStream;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Counts the leaf nodes of the move tree of a position to a given depth,
+ * the usual way of checking move generation against known results and
+ * measuring its throughput.
+ * <p>
+ * Moves are made and taken back on the board itself, which is left as it
+ * was once counting finishes. The last ply is counted in bulk, that is, by
+ * the size of the generated move list rather than by making each move.
+ * <p>
+ * {@link Perft#count(int, ForkJoinPool)} splits the tree at the root, and
+ * at the second ply for deeper counts, into tasks each working on their own
+ * fork of the board.
+ * <p>
+ * Given a {@link PerftCache}, the counts of subtrees two plies deep or more
+ * are stored and looked up by their key, so that transposed subtrees are only
+ * counted once. One cache may be shared by the tasks of a parallel count.
+ */
+public final class Perft {
+    private final BoardMap board;
+    private final MoveGenerator generator;
+    private final PerftCache cache;
+
+    private Perft(BoardMap board, PerftCache cache) {
+        this.board = board;
+        this.generator = MoveGenerator.create(board);
+        this.cache = cache;
+    }
+
+    /**
+     * Counts the leaf nodes to the given depth
+     * @param depth the depth, 0 counting the position itself
+     * @return the amount of nodes
+     */
+    public long count(int depth) {
+        if(depth < 0) throw new IllegalArgumentException(STR."negative depth \{depth}");
+        if(depth > MoveGenerator.MAX_PLY) throw new IllegalArgumentException(STR."depth \{depth} exceeds \{MoveGenerator.MAX_PLY}");
+        return depth == 0 ? 1 : this.count(depth, 0);
+    }
+
+    /**
+     * Counts the leaf nodes to the given depth in parallel, giving the same
+     * result as {@link Perft#count(int)}. Every root move, and every reply to
+     * it if at least three plies remain, is counted by its own task on a fork
+     * of the board, so the board of this perft is never touched by the pool.
+     * @param depth the depth, 0 counting the position itself
+     * @param pool the pool to run the tasks in
+     * @return the amount of nodes
+     */
+    public long count(int depth, ForkJoinPool pool) {
+        if(depth < 0) throw new IllegalArgumentException(STR."negative depth \{depth}");
+        if(depth > MoveGenerator.MAX_PLY) throw new IllegalArgumentException(STR."depth \{depth} exceeds \{MoveGenerator.MAX_PLY}");
+        if(depth <= 1) return this.count(depth);
+        return pool.invoke(new CountTask(board, cache, generator.generate(0), depth - 1, true));
+    }
+
+    private long count(int depth, int ply) {
+        if(depth == 1 || cache == null) return this.countUncached(depth, ply);
+        long key = board.getHash();
+        long nodes = cache.get(key, depth);
+        if(nodes >= 0) return nodes;
+        nodes = this.countUncached(depth, ply);
+        cache.put(key, depth, nodes);
+        return nodes;
+    }
+
+    private long countUncached(int depth, int ply) {
+        MoveList list = generator.generate(ply);
+        if(depth == 1) return list.size();
+        long nodes = 0;
+        for(int i = 0; i < list.size(); i++) {
+            board.makeMove(list.get(i));
+            nodes += this.count(depth - 1, ply + 1);
+            board.unmakeMove();
+        }
+        return nodes;
+    }
+
+    /**
+     * Counts the leaf nodes to the given depth, printing the count below
+     * each root move in the format of {@code go perft}, such as {@code e2e4: 20}
+     * @param depth the depth, at least 1
+     * @param out the stream to print to
+     * @return the amount of nodes
+     */
+    public long divide(int depth, PrintStream out) {
+        if(depth < 1) throw new IllegalArgumentException(STR."cannot divide at depth \{depth}");
+        if(depth > MoveGenerator.MAX_PLY) throw new IllegalArgumentException(STR."depth \{depth} exceeds \{MoveGenerator.MAX_PLY}");
+        MoveList list = generator.generate(0);
+        StringBuilder builder = new StringBuilder();
+        long nodes = 0;
+        for(int i = 0; i < list.size(); i++) {
+            int move = list.get(i);
+            long count = 1;
+            if(depth > 1) {
+                board.makeMove(move);
+                count = this.count(depth - 1, 1);
+                board.unmakeMove();
+            }
+            nodes += count;
+            UCI.format(move, builder).append(": ").append(count).append('\n');
+        }
+        builder.append('\n').append("Nodes searched: ").append(nodes);
+        out.println(builder);
+        return nodes;
+    }
+
+    /**
+     * Counts the leaf nodes of every entry of a resource laid out like
+     * {@code fen_test.json}, an array of objects holding a {@code fen},
+     * a {@code depth} and the expected amount of {@code nodes}. Mismatches
+     * are printed as they are found, and a summary once all entries ran.
+     * @param resource the resource
+     * @param out the stream to print to
+     * @return the result
+     */
+    public static Result runSuite(String resource, PrintStream out) {
+        int passed = 0, failed = 0;
+        long nodes = 0, nanos = 0;
+        for(JsonElement element : Resources.getAsJson(resource).getAsJsonArray()) {
+            JsonObject entry = element.getAsJsonObject();
+            String fen = entry.get("fen").getAsString();
+            int depth = entry.get("depth").getAsInt();
+            long expected = entry.get("nodes").getAsLong();
+
+            Perft perft = Perft.create(BoardMap.fromFENString(fen));
+            long start = System.nanoTime();
+            long count = perft.count(depth);
+            nanos += System.nanoTime() - start;
+            nodes += count;
+            if(count == expected) {
+                passed++;
+            } else {
+                failed++;
+                out.println(STR."Perft mismatch at depth \{depth}: expected \{expected}, got \{count} for \{fen}");
+            }
+        }
+        Result result = new Result(passed, failed, nodes, nanos);
+        out.println(result);
+        return result;
+    }
+
+    /**
+     * Runs a suite like {@link Perft#runSuite(String, PrintStream)}, counting
+     * every entry both sequentially and with {@link Perft#count(int, ForkJoinPool)}.
+     * Both counts must match the expected one for an entry to pass, and the
+     * speedup of the parallel counts over the sequential ones is printed once
+     * all entries ran.
+     * @param resource the resource
+     * @param out the stream to print to
+     * @param pool the pool to run the parallel counts in
+     * @return the result of the parallel counts
+     */
+    public static Result runSuite(String resource, PrintStream out, ForkJoinPool pool) {
+        int passed = 0, failed = 0;
+        long nodes = 0, sequentialNanos = 0, parallelNanos = 0;
+        for(JsonElement element : Resources.getAsJson(resource).getAsJsonArray()) {
+            JsonObject entry = element.getAsJsonObject();
+            String fen = entry.get("fen").getAsString();
+            int depth = entry.get("depth").getAsInt();
+            long expected = entry.get("nodes").getAsLong();
+
+            Perft perft = Perft.create(BoardMap.fromFENString(fen));
+            long start = System.nanoTime();
+            long sequential = perft.count(depth);
+            long mid = System.nanoTime();
+            long parallel = perft.count(depth, pool);
+            long end = System.nanoTime();
+            sequentialNanos += mid - start;
+            parallelNanos += end - mid;
+            nodes += parallel;
+            if(sequential == expected && parallel == expected) {
+                passed++;
+            } else {
+                failed++;
+                out.println(STR."Perft mismatch at depth \{depth}: expected \{expected}, got \{sequential} sequentially and \{parallel} in parallel for \{fen}");
+            }
+        }
+        Result result = new Result(passed, failed, nodes, parallelNanos);
+        out.println(result);
+        out.println(STR."Parallelism \{pool.getParallelism()}, sequential \{sequentialNanos / 1_000_000}ms, speedup \{String.format("%.2f", parallelNanos == 0 ? 0 : (double) sequentialNanos / parallelNanos)}x");
+        return result;
+    }
+
+    public static Perft create(BoardMap board) {
+        return new Perft(board, null);
+    }
+
+    /**
+     * Creates a perft storing the counts of subtrees in the cache
+     * @param board the board
+     * @param cache the cache, which may be shared with other perfts
+     * @return the perft
+     */
+    public static Perft create(BoardMap board, PerftCache cache) {
+        return new Perft(board, Objects.requireNonNull(cache, "cache"));
+    }
+
+    // Counts the nodes below each move of the list, one subtask per move
+    private static final class CountTask extends RecursiveTask<Long> {
+        private final BoardMap board;
+        private final PerftCache cache;
+        private final MoveList moves;
+        private final int depth;
+        private final boolean split;
+        private final int move;
+
+        // forks of the board are taken for the subtasks, the board itself is left alone
+        CountTask(BoardMap board, PerftCache cache, MoveList moves, int depth, boolean split) {
+            this(board, cache, moves, depth, split, MovePicker.NO_MOVE);
+        }
+
+        private CountTask(BoardMap board, PerftCache cache, MoveList moves, int depth, boolean split, int move) {
+            this.board = board;
+            this.cache = cache;
+            this.moves = moves;
+            this.depth = depth;
+            this.split = split;
+            this.move = move;
+        }
+
+        @Override
+        protected Long compute() {
+            if(move == MovePicker.NO_MOVE) {
+                CountTask[] tasks = new CountTask[moves.size()];
+                for(int i = 0; i < tasks.length; i++) {
+                    // forked here rather than in the subtasks, which could race on lazily cached state
+                    tasks[i] = new CountTask(board.fork(), cache, null, depth, split, moves.get(i));
+                }
+                invokeAll(tasks);
+                long nodes = 0;
+                for(CountTask task : tasks) nodes += task.join();
+                return nodes;
+            }
+            board.makeMove(move);
+            Perft perft = new Perft(board, cache);
+            if(!split || depth < 3) return perft.count(depth);
+            // split once more, the replies then count on forks of this board
+            return new CountTask(board, cache, perft.generator.generate(0), depth - 1, false).compute();
+        }
+    }
+
+    /**
+     * The result of running a perft suite
+     * @param passed the amount of entries matching their expected count
+     * @param failed the amount of entries not matching their expected count
+     * @param nodes the nodes counted over all entries
+     * @param nanos the time spent counting, excluding setting up the boards
+     */
+    public record Result(int passed, int failed, long nodes, long nanos) {
+        public long nodesPerSecond() {
+            return nanos == 0 ? 0 : (long) (nodes * 1e9 / nanos);
+        }
+
+        @Override
+        public String toString() {
+            return STR."Perft: \{passed} passed, \{failed} failed, \{nodes} nodes in \{nanos / 1_000_000}ms (\{this.nodesPerSecond()} nps)";
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package io.github.rainvaporeon.chess.fish.game.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed size table of subtree node counts for {@link Perft}, keyed by
+ * the Zobrist key of a position and the depth counted below it.
+ * <p>
+ * The table takes no locks and may be shared between threads. Each entry is
+ * two words, the data and the key xor the data; a reader only accepts an
+ * entry whose words agree, so entries torn by racing writers are treated as
+ * misses rather than returning a wrong count. Newer entries always replace
+ * older ones in their slot.
+ * <p>
+ * Counts are trusted by their 64-bit key alone, so a key collision between
+ * two positions would go unnoticed, which is accepted for perft.
+ */
+public final class PerftCache {
+    // The data word holds the depth in the lowest byte, and the count above it
+    private static final int DEPTH_BITS = 8;
+    private static final long DEPTH_MASK = (1L << DEPTH_BITS) - 1;
+    private static final long MAX_NODES = -1L >>> DEPTH_BITS;
+
+    private final AtomicLongArray table;
+    private final int mask;
+    private final LongAdder probes = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+
+    private PerftCache(int entries) {
+        this.table = new AtomicLongArray(entries * 2);
+        this.mask = entries - 1;
+    }
+
+    /**
+     * Looks up the count of a subtree
+     * @param key the Zobrist key of the position
+     * @param depth the depth counted, from 1 to 255
+     * @return the count, or -1 if it is not cached
+     */
+    public long get(long key, int depth) {
+        probes.increment();
+        int slot = this.slot(key, depth);
+        // opaque accesses keep each word whole, the check below catches mixed pairs
+        long data = table.getOpaque(slot + 1);
+        if((table.getOpaque(slot) ^ data) != key || (data & DEPTH_MASK) != depth) return -1;
+        hits.increment();
+        return data >>> DEPTH_BITS;
+    }
+
+    /**
+     * Stores the count of a subtree, replacing whatever held its slot
+     * @param key the Zobrist key of the position
+     * @param depth the depth counted, from 1 to 255
+     * @param nodes the count, counts too large to store are skipped
+     */
+    public void put(long key, int depth, long nodes) {
+        if(nodes > MAX_NODES) return;
+        int slot = this.slot(key, depth);
+        long data = nodes << DEPTH_BITS | depth;
+        table.setOpaque(slot, key ^ data);
+        table.setOpaque(slot + 1, data);
+    }
+
+    // The index of the first word of the entry; depths are mixed in so that
+    // the counts of one position at several depths do not evict each other
+    private int slot(long key, int depth) {
+        long mixed = key ^ depth * 0x9E3779B97F4A7C15L;
+        return ((int) (mixed ^ mixed >>> 32) & mask) << 1;
+    }
+
+    /**
+     * Empties the table and resets its statistics
+     */
+    public void clear() {
+        for(int i = 0; i < table.length(); i++) table.setOpaque(i, 0);
+        probes.reset();
+        hits.reset();
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public long probes() {
+        return probes.sum();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the share of lookups that found their count
+     * @return the rate, from 0 to 1
+     */
+    public double hitRate() {
+        long probes = this.probes();
+        return probes == 0 ? 0 : (double) this.hits() / probes;
+    }
+
+    @Override
+    public String toString() {
+        return STR."PerftCache[capacity=\{this.capacity()}, probes=\{this.probes()}, hits=\{this.hits()}, hitRate=\{String.format("%.2f%%", this.hitRate() * 100)}]";
+    }
+
+    /**
+     * Creates a cache taking about the given amount of memory
+     * @param megabytes the size of the table, at least 1
+     * @return the cache, holding the largest power of two of entries fitting in the size
+     */
+    public static PerftCache create(int megabytes) {
+        if(megabytes < 1) throw new IllegalArgumentException(STR."cannot create a cache of \{megabytes}MB");
+        // two longs per entry
+        long entries = Long.highestOneBit((long) megabytes * 1024 * 1024 / 16);
+        // arrays are indexed by int, and each entry takes two slots
+        return new PerftCache((int) Math.min(entries, 1 << 29));
+    }
+}
@@ -1,6 +1,7 @@
 package io.github.rainvaporeon.chess.fish.game.utils.board;
 
 import io.github.rainvaporeon.chess.fish.game.Piece;
+import io.github.rainvaporeon.chess.fish.game.utils.BitboardMask;
 import com.spiritlight.fishutils.collections.IntList;
 import com.spiritlight.fishutils.misc.arrays.primitive.LongArray;
 
@@ -32,6 +33,45 @@ public class AttackTable {
 
     private static final long[] directPawn, directKnight, directBishop, directRook, directQueen, directKing;
 
+    // Indexed by from * 64 + to, zero if both squares are not aligned
+    private static final long[] BETWEEN = new long[64 * 64];
+    private static final long[] LINE = new long[64 * 64];
+
+    static {
+        final int[][] directions = {{1, 0}, {0, 1}, {1, 1}, {1, -1}};
+        for(int from = 0; from < 64; from++) {
+            for(int[] d : directions) {
+                long line = walk(from, d[0], d[1]) | walk(from, -d[0], -d[1]) | (1L << from);
+                for(int sign = -1; sign <= 1; sign += 2) {
+                    long between = 0;
+                    int file = BoardHelper.getFile(from) + d[0] * sign;
+                    int rank = BoardHelper.getRank(from) + d[1] * sign;
+                    while(file >= 0 && file < 8 && rank >= 0 && rank < 8) {
+                        int to = rank * 8 + file;
+                        BETWEEN[from * 64 + to] = between;
+                        LINE[from * 64 + to] = line;
+                        between |= 1L << to;
+                        file += d[0] * sign;
+                        rank += d[1] * sign;
+                    }
+                }
+            }
+        }
+    }
+
+    // All squares from the position towards the direction, excluding itself
+    private static long walk(int pos, int fileStep, int rankStep) {
+        long mask = 0;
+        int file = BoardHelper.getFile(pos) + fileStep;
+        int rank = BoardHelper.getRank(pos) + rankStep;
+        while(file >= 0 && file < 8 && rank >= 0 && rank < 8) {
+            mask |= 1L << (rank * 8 + file);
+            file += fileStep;
+            rank += rankStep;
+        }
+        return mask;
+    }
+
     static {
         long[] R = new long[64];
         for(int i = 0; i < 64; i++) {
@@ -239,6 +279,43 @@ public class AttackTable {
         };
     }
 
+    /**
+     * Computes the squares attacked by all the given pawns at once
+     * @param color the color of the pawns
+     * @param pawns the pawn bitboard
+     * @return the attacked squares
+     */
+    public static long getPawnAttacks(int color, long pawns) {
+        long notFileA = ~BitboardMask.getFileMask(0);
+        long notFileH = ~BitboardMask.getFileMask(7);
+        if(color == WHITE) {
+            return ((pawns << 7) & notFileH) | ((pawns << 9) & notFileA);
+        }
+        return ((pawns >>> 9) & notFileH) | ((pawns >>> 7) & notFileA);
+    }
+
+    /**
+     * Gets the squares strictly between two squares sharing
+     * a rank, file or diagonal
+     * @param from the first square, from 0 to 63
+     * @param to the second square, from 0 to 63
+     * @return the squares in between, zero if the squares are not aligned
+     */
+    public static long between(int from, int to) {
+        return BETWEEN[from * 64 + to];
+    }
+
+    /**
+     * Gets the full rank, file or diagonal passing through both squares,
+     * from edge to edge
+     * @param from the first square, from 0 to 63
+     * @param to the second square, from 0 to 63
+     * @return the line, zero if the squares are not aligned
+     */
+    public static long line(int from, int to) {
+        return LINE[from * 64 + to];
+    }
+
     public static long getMaskAt(int piece, int src) {
         return AttackTable.getDirect(piece, src);
     }
@@ -0,0 +1,373 @@
+package io.github.rainvaporeon.chess.fish.game.utils.board;
+
+import io.github.rainvaporeon.chess.fish.game.utils.EndType;
+import io.github.rainvaporeon.chess.fish.game.utils.GameState;
+import io.github.rainvaporeon.chess.fish.internal.utils.Bits;
+import com.spiritlight.fishutils.collections.Pair;
+
+import java.util.Arrays;
+
+import static io.github.rainvaporeon.chess.fish.game.Piece.*;
+
+/**
+ * The single position object shared by both sides of a {@link BoardMap}.
+ * <p>
+ * This keeps the twelve piece bitboards alongside a 64-entry mailbox,
+ * where each square holds the piece (color included) standing on it,
+ * or {@link io.github.rainvaporeon.chess.fish.game.Piece#NONE} if empty.
+ * Both views, along with the occupancy of each side, are kept consistent
+ * by {@link BoardLayout#set(int, long)} and {@link BoardLayout#clear(int, long)},
+ * so square and blocker lookups do not need to walk the bitboards.
+ */
+final class BoardLayout {
+    /**
+     * The piece bitboards, indexed by {@link BoardLayout#index(int)}.
+     * White pieces occupy the first six slots, black pieces the last six.
+     */
+    final long[] pieces;
+    /**
+     * The piece standing on each square, color included.
+     */
+    final byte[] mailbox;
+    /**
+     * The squares occupied by each side, indexed by {@link BoardLayout#side(int)}
+     */
+    final long[] occupancy;
+    /**
+     * The squares occupied by either side
+     */
+    long occupied;
+    /**
+     * The squares attacked by each side, including those holding its own
+     * pieces. Only valid if the bit of the side is set in {@link BoardLayout#attacksValid}.
+     * @see BoardLayout#attacks(int)
+     */
+    private final long[] attacks;
+    // The part of the attacks made by sliding pieces
+    private final long[] sliderAttacks;
+    private int attacksValid;
+    /**
+     * The enemy pieces giving check to the king of each side, and the
+     * pieces of each side pinned to its own king. Only valid if the bit of
+     * the side is set in {@link BoardLayout#pinsValid}.
+     */
+    private final long[] checkers;
+    private final long[] pinned;
+    private int pinsValid;
+    /**
+     * The memoized results of {@link BoardMap#getGameState()} and {@link BoardMap#getState()},
+     * null until computed and cleared by any change to the position
+     */
+    Pair<GameState, EndType> gameState;
+    GameState state;
+    /**
+     * The latest snapshot published for readers on other threads
+     */
+    volatile BoardSnapshot snapshot;
+    /**
+     * The castle rights of both sides, using the FEN constants
+     * found in {@link io.github.rainvaporeon.chess.fish.game.utils.GameConstants}.
+     */
+    int castle;
+    /**
+     * The Zobrist key of this position, kept up to date by every
+     * mutation made through this layout. Turn and en passant keys are
+     * maintained by the owning {@link BoardMap}.
+     */
+    long hash;
+    /**
+     * The undo stack of the moves made on this layout, holding
+     * {@link BoardLayout#UNDO_FRAME} entries per move.
+     * @see BoardMap#makeMove(int)
+     */
+    int[] undo;
+    /**
+     * The amount of entries in use on the undo stack
+     */
+    int undoSize;
+    /**
+     * The keys of the positions preceding each move made on this layout
+     */
+    final HashHistory history;
+
+    static final int UNDO_FRAME = 3;
+    // Deep enough for any search, longer games grow the stack once
+    private static final int UNDO_CAPACITY = 256 * UNDO_FRAME;
+
+    BoardLayout() {
+        this.pieces = new long[12];
+        this.mailbox = new byte[64];
+        this.occupancy = new long[2];
+        this.attacks = new long[2];
+        this.sliderAttacks = new long[2];
+        this.checkers = new long[2];
+        this.pinned = new long[2];
+        this.undo = new int[UNDO_CAPACITY];
+        this.history = new HashHistory();
+    }
+
+    private BoardLayout(BoardLayout other) {
+        this.pieces = other.pieces.clone();
+        this.mailbox = other.mailbox.clone();
+        this.occupancy = other.occupancy.clone();
+        this.occupied = other.occupied;
+        this.attacks = other.attacks.clone();
+        this.sliderAttacks = other.sliderAttacks.clone();
+        this.attacksValid = other.attacksValid;
+        this.checkers = other.checkers.clone();
+        this.pinned = other.pinned.clone();
+        this.pinsValid = other.pinsValid;
+        this.gameState = other.gameState;
+        this.state = other.state;
+        // snapshots are not carried over, they describe the board they were published from
+        this.snapshot = null;
+        this.castle = other.castle;
+        this.hash = other.hash;
+        this.undo = other.undo.clone();
+        this.undoSize = other.undoSize;
+        this.history = other.history.copy();
+    }
+
+    /**
+     * Retrieves the bitboard index of the given piece
+     * @param piece the piece, color included
+     * @return the index, ranging from 0 to 11
+     */
+    static int index(int piece) {
+        return side(piece) * 6 + (piece & PIECE_MASK) - 1;
+    }
+
+    /**
+     * Retrieves the side index of the given piece or color
+     * @param piece the piece or color
+     * @return 0 for white, 1 for black
+     */
+    static int side(int piece) {
+        return (piece & BLACK) >>> 4;
+    }
+
+    /**
+     * Gets the bitboard of the given piece
+     * @param piece the piece, color included
+     * @return the bitboard
+     */
+    long get(int piece) {
+        return pieces[index(piece)];
+    }
+
+    /**
+     * Gets the piece standing on the given square
+     * @param square the square, from 0 to 63
+     * @return the piece, color included
+     */
+    int pieceAt(int square) {
+        return mailbox[square];
+    }
+
+    /**
+     * Places the piece on every square specified by the mask.
+     * @param piece the piece, color included
+     * @param mask the squares
+     */
+    void set(int piece, long mask) {
+        int idx = index(piece);
+        long added = mask & ~pieces[idx];
+        pieces[idx] |= mask;
+        occupancy[side(piece)] |= mask;
+        occupied = occupancy[0] | occupancy[1];
+        invalidate(side(piece), mask);
+        while(mask != 0) {
+            int square = Long.numberOfTrailingZeros(mask);
+            mailbox[square] = (byte) piece;
+            if((added & (1L << square)) != 0) hash ^= Zobrist.piece(piece, square);
+            mask &= mask - 1;
+        }
+    }
+
+    /**
+     * Removes the piece from every square specified by the mask.
+     * Squares in the mailbox are only emptied if they still hold
+     * this piece, as the caller may have placed another piece on it
+     * beforehand.
+     * @param piece the piece, color included
+     * @param mask the squares
+     */
+    void clear(int piece, long mask) {
+        int idx = index(piece);
+        mask &= pieces[idx];
+        pieces[idx] &= ~mask;
+        occupancy[side(piece)] &= ~mask;
+        occupied = occupancy[0] | occupancy[1];
+        invalidate(side(piece), mask);
+        while(mask != 0) {
+            int square = Long.numberOfTrailingZeros(mask);
+            if(mailbox[square] == piece) mailbox[square] = NONE;
+            hash ^= Zobrist.piece(piece, square);
+            mask &= mask - 1;
+        }
+    }
+
+    /**
+     * Gets the squares attacked by the given side, computing them
+     * only if a change since the last call could have affected them.
+     * @param side the side, see {@link BoardLayout#side(int)}
+     * @return the attacked squares, including defended pieces
+     */
+    long attacks(int side) {
+        if((attacksValid & (1 << side)) == 0) {
+            computeAttacks(side);
+            attacksValid |= 1 << side;
+        }
+        return attacks[side];
+    }
+
+    private void computeAttacks(int side) {
+        int base = side * 6;
+        long diagonal = pieces[base + BISHOP - 1] | pieces[base + QUEEN - 1];
+        long straight = pieces[base + ROOK - 1] | pieces[base + QUEEN - 1];
+        long knights = pieces[base + KNIGHT - 1];
+        long sliders = 0;
+        while(diagonal != 0) {
+            sliders |= Bits.getRayAttackMagic(occupied, Long.numberOfTrailingZeros(diagonal), BISHOP);
+            diagonal &= diagonal - 1;
+        }
+        while(straight != 0) {
+            sliders |= Bits.getRayAttackMagic(occupied, Long.numberOfTrailingZeros(straight), ROOK);
+            straight &= straight - 1;
+        }
+        long attack = sliders | AttackTable.getPawnAttacks(side == 0 ? WHITE : BLACK, pieces[base + PAWN - 1]);
+        while(knights != 0) {
+            attack |= AttackTable.getDirect(KNIGHT, Long.numberOfTrailingZeros(knights));
+            knights &= knights - 1;
+        }
+        long king = pieces[base + KING - 1];
+        if(king != 0) attack |= AttackTable.getDirect(KING, Long.numberOfTrailingZeros(king));
+        attacks[side] = attack;
+        sliderAttacks[side] = sliders;
+    }
+
+    // A side's attacks change when one of its pieces changes, or when
+    // the occupancy changes on a square its sliding pieces reach.
+    private void invalidate(int side, long mask) {
+        if(mask == 0) return;
+        pinsValid = 0;
+        forget();
+        attacksValid &= ~(1 << side);
+        if((mask & sliderAttacks[side ^ 1]) != 0) attacksValid &= ~(1 << (side ^ 1));
+    }
+
+    /**
+     * Gets the pieces of the given side attacking the square
+     * @param square the square, from 0 to 63
+     * @param side the attacking side
+     * @param occ the occupancy to consider, pieces outside of it are ignored
+     * @return the attackers
+     */
+    long attackersTo(int square, int side, long occ) {
+        int base = side * 6;
+        long diagonal = pieces[base + BISHOP - 1] | pieces[base + QUEEN - 1];
+        long straight = pieces[base + ROOK - 1] | pieces[base + QUEEN - 1];
+        // a pawn of the other color on this square attacks the pawns attacking it
+        long attackers = (AttackTable.getPawnAttacks(side == 0 ? BLACK : WHITE, 1L << square) & pieces[base + PAWN - 1])
+                | (AttackTable.getDirect(KNIGHT, square) & pieces[base + KNIGHT - 1])
+                | (AttackTable.getDirect(KING, square) & pieces[base + KING - 1]);
+        if(diagonal != 0) attackers |= Bits.getRayAttackMagic(occ, square, BISHOP) & diagonal;
+        if(straight != 0) attackers |= Bits.getRayAttackMagic(occ, square, ROOK) & straight;
+        return attackers & occ;
+    }
+
+    /**
+     * Gets the enemy pieces giving check to the king of the given side
+     * @param side the side
+     * @return the checkers, zero if the side has no king
+     */
+    long checkers(int side) {
+        if((pinsValid & (1 << side)) == 0) computePins(side);
+        return checkers[side];
+    }
+
+    /**
+     * Gets the pieces of the given side pinned to their own king
+     * @param side the side
+     * @return the pinned pieces
+     */
+    long pinned(int side) {
+        if((pinsValid & (1 << side)) == 0) computePins(side);
+        return pinned[side];
+    }
+
+    private void computePins(int side) {
+        long king = pieces[side * 6 + KING - 1];
+        long pins = 0;
+        long check = 0;
+        if(king != 0) {
+            int square = Long.numberOfTrailingZeros(king);
+            int enemy = side ^ 1;
+            int base = enemy * 6;
+            check = attackersTo(square, enemy, occupied);
+            // enemy sliders aiming at the king through anything but their own pieces
+            long snipers = (Bits.getRayAttackMagic(occupancy[enemy], square, BISHOP) & (pieces[base + BISHOP - 1] | pieces[base + QUEEN - 1]))
+                    | (Bits.getRayAttackMagic(occupancy[enemy], square, ROOK) & (pieces[base + ROOK - 1] | pieces[base + QUEEN - 1]));
+            while(snipers != 0) {
+                long between = AttackTable.between(square, Long.numberOfTrailingZeros(snipers)) & occupied;
+                if(between != 0 && (between & (between - 1)) == 0) pins |= between & occupancy[side];
+                snipers &= snipers - 1;
+            }
+        }
+        checkers[side] = check;
+        pinned[side] = pins;
+        pinsValid |= 1 << side;
+    }
+
+    /**
+     * Replaces the castle rights, updating the key accordingly
+     * @param rights the new castle rights
+     */
+    void setCastle(int rights) {
+        hash ^= Zobrist.castle(castle) ^ Zobrist.castle(rights);
+        castle = rights;
+    }
+
+    /**
+     * Pushes one frame onto the undo stack
+     */
+    void push(int move, int state, int halfMove) {
+        if(undoSize + UNDO_FRAME > undo.length) {
+            undo = Arrays.copyOf(undo, undo.length * 2);
+        }
+        undo[undoSize++] = move;
+        undo[undoSize++] = state;
+        undo[undoSize++] = halfMove;
+    }
+
+    /**
+     * Empties this layout, discarding the undo stack and all cached state
+     */
+    void reset() {
+        Arrays.fill(pieces, 0);
+        Arrays.fill(mailbox, (byte) NONE);
+        Arrays.fill(occupancy, 0);
+        occupied = 0;
+        castle = 0;
+        hash = 0;
+        undoSize = 0;
+        history.clear();
+        attacksValid = 0;
+        pinsValid = 0;
+        snapshot = null;
+        forget();
+    }
+
+    /**
+     * Clears the memoized game state, for changes made outside of
+     * {@link BoardLayout#set(int, long)} and {@link BoardLayout#clear(int, long)}
+     */
+    void forget() {
+        gameState = null;
+        state = null;
+    }
+
+    BoardLayout copy() {
+        return new BoardLayout(this);
+    }
+}
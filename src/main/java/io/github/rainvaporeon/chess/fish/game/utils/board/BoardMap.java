@@ -2,30 +2,28 @@ package io.github.rainvaporeon.chess.fish.game.utils.board;
 
 import io.github.rainvaporeon.chess.fish.game.FEN;
 import io.github.rainvaporeon.chess.fish.game.Piece;
+import io.github.rainvaporeon.chess.fish.game.utils.BitboardMask;
 import io.github.rainvaporeon.chess.fish.game.utils.EndType;
 import io.github.rainvaporeon.chess.fish.game.utils.GameState;
-import io.github.rainvaporeon.chess.fish.game.utils.MoveGenerator;
+import io.github.rainvaporeon.chess.fish.game.utils.MoveList;
 import io.github.rainvaporeon.chess.fish.game.utils.game.Move;
+import io.github.rainvaporeon.chess.fish.game.utils.game.MoveStatus;
 import io.github.rainvaporeon.chess.fish.game.utils.game.MovementEvent;
+import io.github.rainvaporeon.chess.fish.game.utils.game.PackedMove;
 import io.github.rainvaporeon.chess.fish.internal.InternLogger;
 import io.github.rainvaporeon.chess.fish.internal.annotation.Mask;
 import io.github.rainvaporeon.chess.fish.internal.annotation.MaskType;
 import io.github.rainvaporeon.chess.fish.internal.exceptions.SystemError;
 import io.github.rainvaporeon.chess.fish.internal.jnative.NativeMagicBoard;
-import io.github.rainvaporeon.chess.fish.internal.utils.Bits;
 import com.spiritlight.fishutils.collections.Pair;
-import com.spiritlight.fishutils.misc.annotations.Modifies;
 
 import java.lang.annotation.*;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
 
 import static io.github.rainvaporeon.chess.fish.game.FEN.*;
 import static io.github.rainvaporeon.chess.fish.game.Piece.*;
 import static io.github.rainvaporeon.chess.fish.game.utils.GameConstants.*;
-import static io.github.rainvaporeon.chess.fish.game.utils.game.Move.BACKWARD_OFFSET;
 import static io.github.rainvaporeon.chess.fish.game.utils.game.Move.FORWARD_OFFSET;
 
 public class BoardMap implements Cloneable {
@@ -38,39 +36,43 @@ public class BoardMap implements Cloneable {
     private static final int CASTLE_K_MASK = 0xF0;
     private static final int CASTLE_Q_MASK = 0x0F;
 
-    // board to represent piece status
-    private long pawn;
-    private long bishop;
-    private long knight;
-    private long rook;
-    private long queen;
-    private long king;
+    /**
+     * The amount of bytes written by {@link BoardMap#writeTo(ByteBuffer)}
+     */
+    public static final int SERIALIZED_SIZE = 32;
+
+    // Both sides share a single layout; this board is merely the
+    // view of one color over it.
+    private BoardLayout layout;
 
-    // TODO: Extract this to merge two map into one (probably saves like 12 bytes)
     private final int color;
     // Update: Deprecated the use of StableField and removed final
     //  to make cloning easier.
-    // TODO: Optionally clamp the two boards into one
     private BoardMap enemyBoard;
-    // Consider this for castling, ~0xF0/0x0F to cancel one
-    // TODO: Extract this into a common castle byte (11/11)
-    private int castle = 0xFF; // K=F0, Q=0F
     private BoardInfo info;
 
     private CheckMethod checkMethod;
 
-    private BoardMap(long pawn, long bishop, long knight, long rook, long queen, long king, int color) {
-        this.pawn = pawn;
-        this.bishop = bishop;
-        this.knight = knight;
-        this.rook = rook;
-        this.queen = queen;
-        this.king = king;
+    private BoardMap(BoardLayout layout, BoardInfo info, int color) {
+        this.layout = layout;
+        this.info = info;
         this.color = color;
         this.checkMethod = CheckMethod.BITS;
         this.enemyBoard = null;
     }
 
+    /**
+     * Creates both views over the given layout
+     * @return the white board
+     */
+    private static BoardMap link(BoardLayout layout, BoardInfo info) {
+        BoardMap white = new BoardMap(layout, info, WHITE);
+        BoardMap black = new BoardMap(layout, info, BLACK);
+        white.enemyBoard = black;
+        black.enemyBoard = white;
+        return white;
+    }
+
     public int getColor() {
         return color;
     }
@@ -79,13 +81,159 @@ public class BoardMap implements Cloneable {
         return enemyBoard;
     }
 
-    // TODO: Un-making a castle move may be disastrous.
     public MovementEvent unmake(String move) {
-        return forceUpdate(Move.ofInverse(move));
+        return unmake(Move.of(move));
     }
 
+    /**
+     * Takes back the given move, which must be the last move made on this board.
+     * @param move the move, as it was made
+     * @return event denoting the move taken back, or {@link MovementEvent#ILLEGAL}
+     * if it was not the last move made
+     * @see BoardMap#unmakeMove()
+     */
     public MovementEvent unmake(Move move) {
-        return forceUpdate(move.invert());
+        if(layout.undoSize == 0) return MovementEvent.ILLEGAL;
+        int frame = layout.undo[layout.undoSize - BoardLayout.UNDO_FRAME];
+        int dest = PackedMove.to(frame);
+        // castling may be given as the king moving onto its rook
+        if(PackedMove.isCastle(frame)) dest = move.destPos() == dest ? dest : (dest & ~7) + (PackedMove.flags(frame) == PackedMove.KING_CASTLE ? 7 : 0);
+        if(PackedMove.from(frame) != move.sourcePos() || dest != move.destPos()) return MovementEvent.ILLEGAL;
+        this.unmakeMove();
+        this.publishSnapshot();
+        return new MovementEvent(frame >>> 16 & 0x1F, frame >>> 21 & 0x1F, move);
+    }
+
+    /**
+     * Makes the move without validating it, promoting to a queen
+     * if a pawn reaches the last rank.
+     * @param move the move
+     * @see BoardMap#makeMove(Move, int)
+     */
+    public void makeMove(Move move) {
+        this.makeMove(this.encode(move, QUEEN));
+    }
+
+    /**
+     * Makes the move without validating it. The move is made for the side
+     * owning the moved piece, and can be taken back with {@link BoardMap#unmakeMove()}.
+     * <p>
+     * Castling follows the same input as {@link BoardMap#update(Move)}, that is, the
+     * king moving onto its own rook, though moving the king by two files is also accepted.
+     * @param move the move
+     * @param promotion the piece type to promote to, ignored if the move is not a promotion
+     * @apiNote unlike {@link BoardMap#update(Move)}, this does not allocate nor publish
+     * a snapshot, which makes it suitable for search.
+     */
+    public void makeMove(Move move, int promotion) {
+        this.makeMove(this.encode(move, promotion));
+    }
+
+    /**
+     * Encodes the move for this position, see {@link PackedMove}. The move
+     * is not validated.
+     * <p>
+     * Castling follows the same input as {@link BoardMap#update(Move)}, that is, the
+     * king moving onto its own rook, though moving the king by two files is also accepted.
+     * @param move the move
+     * @param promotion the piece type to promote to, ignored if the move is not a promotion
+     * @return the packed move
+     * @throws IllegalArgumentException if there is no piece to move, or the promotion is not a valid piece
+     */
+    public int encode(Move move, int promotion) {
+        return this.encode(move.sourcePos(), move.destPos(), promotion);
+    }
+
+    /**
+     * Encodes the move for this position, see {@link BoardMap#encode(Move, int)}
+     * @param src the source position
+     * @param dest the destination position
+     * @param promotion the piece type to promote to, ignored if the move is not a promotion
+     * @return the packed move
+     */
+    public int encode(int src, int dest, int promotion) {
+        int piece = layout.pieceAt(src);
+        if(piece == NONE) throw new IllegalArgumentException(STR."no piece to move at \{BoardHelper.getPositionString(src)}");
+        int type = promotion & PIECE_MASK;
+        if(type < KNIGHT || type > QUEEN) throw new IllegalArgumentException(STR."cannot promote to \{Piece.asString(promotion)}");
+        return encode(src, dest, type, piece, layout.pieceAt(dest), info.enPassantSquare);
+    }
+
+    /**
+     * Derives the flags of the move, shared with {@link Position}
+     * @param src the source position
+     * @param dest the destination position
+     * @param promotion the piece type to promote to
+     * @param piece the moved piece
+     * @param captured the piece on the destination
+     * @param enPassant the en passant square, or 0
+     * @return the packed move
+     */
+    static int encode(int src, int dest, int promotion, int piece, int captured, int enPassant) {
+        int mover = Piece.color(piece);
+        int type = piece & PIECE_MASK;
+        if(type == KING && (captured == (mover | ROOK) || Math.abs(BoardHelper.getFile(src) - BoardHelper.getFile(dest)) == 2)) {
+            boolean kingSide = BoardHelper.getFile(dest) > BoardHelper.getFile(src);
+            return PackedMove.of(src, (src & ~7) + (kingSide ? 6 : 2), kingSide ? PackedMove.KING_CASTLE : PackedMove.QUEEN_CASTLE);
+        }
+        if(type == PAWN) {
+            if(dest == enPassant && dest > 0 && captured == NONE && ((src ^ dest) & 7) != 0) return PackedMove.of(src, dest, PackedMove.EN_PASSANT);
+            if(dest >= 56 || dest < 8) return PackedMove.promotion(src, dest, promotion, captured != NONE);
+            if(Math.abs(src - dest) == 16) return PackedMove.of(src, dest, PackedMove.DOUBLE_PUSH);
+        }
+        return PackedMove.of(src, dest, captured != NONE ? PackedMove.CAPTURE : PackedMove.QUIET);
+    }
+
+    /**
+     * Takes back the last move made on this board, restoring the exact
+     * previous state.
+     * @throws IllegalStateException if there is no move to take back
+     */
+    public void unmakeMove() {
+        BoardLayout layout = this.layout;
+        if(layout.undoSize == 0) throw new IllegalStateException("no move to unmake");
+        layout.history.pop();
+        int halfMove = layout.undo[--layout.undoSize];
+        int state = layout.undo[--layout.undoSize];
+        int frame = layout.undo[--layout.undoSize];
+        int src = PackedMove.from(frame);
+        int dest = PackedMove.to(frame);
+        int piece = frame >>> 16 & 0x1F;
+        int captured = frame >>> 21 & 0x1F;
+        int mover = Piece.color(piece);
+        // the en passant key depends on the pawns, so it is taken out before they move
+        long enPassantKey = Zobrist.enPassant(info.enPassantSquare, layout.pieces, info.turn);
+
+        info.turn ^= TURN_MASK;
+        if(mover == BLACK) info.fullMove--;
+        info.halfMove = halfMove;
+        layout.setCastle(state & 0xF);
+        info.enPassantSquare = (byte) (state >>> 4);
+
+        int flags = PackedMove.flags(frame);
+        switch (flags) {
+            case PackedMove.KING_CASTLE, PackedMove.QUEEN_CASTLE -> {
+                int rank = src & ~7;
+                boolean kingSide = flags == PackedMove.KING_CASTLE;
+                int rook = mover | ROOK;
+                layout.clear(piece, 1L << dest);
+                layout.clear(rook, 1L << (rank + (kingSide ? 5 : 3)));
+                layout.set(piece, 1L << src);
+                layout.set(rook, 1L << (rank + (kingSide ? 7 : 0)));
+            }
+            case PackedMove.EN_PASSANT -> {
+                layout.clear(piece, 1L << dest);
+                layout.set(piece, 1L << src);
+                layout.set(captured, 1L << ((src & ~7) | (dest & 7)));
+            }
+            default -> {
+                layout.clear(PackedMove.isPromotion(frame) ? mover | PackedMove.promotion(frame) : piece, 1L << dest);
+                layout.set(piece, 1L << src);
+                if(captured != NONE) layout.set(captured, 1L << dest);
+            }
+        }
+        layout.hash ^= Zobrist.turn(BLACK_TURN) ^ enPassantKey ^ Zobrist.enPassant(info.enPassantSquare, layout.pieces, info.turn);
+        if(Zobrist.isVerify()) this.verifyHash();
     }
 
     public MovementEvent forceUpdate(String move) {
@@ -99,17 +247,40 @@ public class BoardMap implements Cloneable {
      * @apiNote this will also change the info.turn to play.
      */
     public MovementEvent forceUpdate(Move move) {
+        return MoveStatus.toEvent(this.tryForceUpdate(move, true), move);
+    }
+
+    /**
+     * Forces a movement update like {@link BoardMap#forceUpdate(Move)}, returning
+     * the result as an int rather than an event. No snapshot is published, see
+     * {@link BoardMap#tryForceUpdate(Move, boolean)} to publish one.
+     * @param move the move
+     * @return the result, see {@link MoveStatus}
+     * @apiNote this does not allocate.
+     */
+    public int tryForceUpdate(Move move) {
+        return this.tryForceUpdate(move, false);
+    }
+
+    /**
+     * Forces a movement update like {@link BoardMap#forceUpdate(Move)}
+     * @param move the move
+     * @param publish whether to publish a snapshot once the move is made, as
+     *                {@link BoardMap#forceUpdate(Move)} does; callers making moves
+     *                in batches may skip it and call {@link BoardMap#publishSnapshot()} once afterward
+     * @return the result, see {@link MoveStatus}
+     * @apiNote without publishing, this does not allocate.
+     */
+    public int tryForceUpdate(Move move, boolean publish) {
         int src  = move.sourcePos();
         int dest = move.destPos();
 
         int srcPiece  = this.getPieceAt(src);
         int destPiece = this.getPieceAt(dest);
 
-        if(info.turn == WHITE_TURN) {
-            return handleMove(srcPiece, src, dest, destPiece, move, true);
-        } else {
-            return this.enemyBoard.handleMove(srcPiece, src, dest, destPiece, move, true);
-        }
+        // handled by the side owning the piece, whose king the move must keep safe
+        BoardMap side = Piece.color(srcPiece) == this.color ? this : this.enemyBoard;
+        return side.handleMove(srcPiece, src, dest, destPiece, QUEEN, true, publish);
     }
 
     public MovementEvent update(String move) {
@@ -117,6 +288,52 @@ public class BoardMap implements Cloneable {
     }
 
     public MovementEvent update(Move move) {
+        return this.update(move, QUEEN);
+    }
+
+    /**
+     * Makes the move if it is valid for the side to play
+     * @param move the move
+     * @param promotion the piece type to promote to, ignored if the move is not a promotion
+     * @return event denoting the move, or the reason it was rejected
+     * @throws IllegalArgumentException if the promotion is not a valid piece
+     */
+    public MovementEvent update(Move move, int promotion) {
+        return MoveStatus.toEvent(this.tryUpdate(move, promotion, true), move);
+    }
+
+    public int tryUpdate(Move move) {
+        return this.tryUpdate(move, QUEEN);
+    }
+
+    /**
+     * Makes the move if it is valid for the side to play, like {@link BoardMap#update(Move, int)},
+     * returning the result as an int rather than an event. No snapshot is published, see
+     * {@link BoardMap#tryUpdate(Move, int, boolean)} to publish one.
+     * @param move the move
+     * @param promotion the piece type to promote to, ignored if the move is not a promotion
+     * @return the result, see {@link MoveStatus}
+     * @throws IllegalArgumentException if the promotion is not a valid piece
+     * @apiNote this does not allocate.
+     */
+    public int tryUpdate(Move move, int promotion) {
+        return this.tryUpdate(move, promotion, false);
+    }
+
+    /**
+     * Makes the move if it is valid for the side to play, like {@link BoardMap#update(Move, int)}
+     * @param move the move
+     * @param promotion the piece type to promote to, ignored if the move is not a promotion
+     * @param publish whether to publish a snapshot once the move is made, as
+     *                {@link BoardMap#update(Move, int)} does; callers validating moves
+     *                in batches may skip it and call {@link BoardMap#publishSnapshot()} once afterward
+     * @return the result, see {@link MoveStatus}
+     * @throws IllegalArgumentException if the promotion is not a valid piece
+     * @apiNote without publishing, this does not allocate.
+     */
+    public int tryUpdate(Move move, int promotion, boolean publish) {
+        int type = promotion & PIECE_MASK;
+        if(type < KNIGHT || type > QUEEN) throw new IllegalArgumentException(STR."cannot promote to \{Piece.asString(promotion)}");
         int src  = move.sourcePos();
         int dest = move.destPos();
 
@@ -125,73 +342,131 @@ public class BoardMap implements Cloneable {
         // Turn checking
         if(Piece.color(srcPiece) != (info.turn == WHITE_TURN ? WHITE : BLACK)) {
             // InternLogger.getLogger().debug(STR."Piece \{Piece.asString(srcPiece)} is not of color \{Piece.asString(color)}");
-            return info.turn == WHITE_TURN ? MovementEvent.WHITE_TO_PLAY : MovementEvent.BLACK_TO_PLAY;
+            return info.turn == WHITE_TURN ? MoveStatus.WHITE_TO_PLAY : MoveStatus.BLACK_TO_PLAY;
         }
         // Destination checking; cannot capture pieces of the same color
         if(Piece.color(srcPiece) == Piece.color(destPiece)) {
-            if(!Piece.is(srcPiece, KING) || !Piece.is(destPiece, ROOK)) return MovementEvent.CAPTURING_SAME;
+            if(!Piece.is(srcPiece, KING) || !Piece.is(destPiece, ROOK)) return MoveStatus.CAPTURING_SAME;
         }
         // Move checking, cannot move from nothing.
-        if(srcPiece == NONE) return MovementEvent.ILLEGAL;
+        if(srcPiece == NONE) return MoveStatus.ILLEGAL;
 
-        if(info.turn == WHITE_TURN && this.color == WHITE) {
-            return handleMove(srcPiece, src, dest, destPiece, move, false);
-        } else {
-            return this.enemyBoard.handleMove(srcPiece, src, dest, destPiece, move, false);
-        }
+        // the piece belongs to the side to play, checked above
+        BoardMap side = Piece.color(srcPiece) == this.color ? this : this.enemyBoard;
+        return side.handleMove(srcPiece, src, dest, destPiece, type, false, publish);
     }
 
+    /**
+     * Gets the phase of the game
+     * @return the phase, memoized until the position changes
+     */
     public GameState getState() {
+        GameState state = layout.state;
+        if(state == null) layout.state = state = this.computeState();
+        return state;
+    }
+
+    private GameState computeState() {
         if(this.info.fullMove <= 10) {
             return GameState.EARLY_GAME;
         } else {
-            return this.queen == 0 && enemyBoard.queen == 0 ? GameState.END_GAME : GameState.MIDDLE_GAME;
+            return this.board(QUEEN) == 0 && enemyBoard.board(QUEEN) == 0 ? GameState.END_GAME : GameState.MIDDLE_GAME;
         }
     }
 
+    /**
+     * Gets the state of the game, including how it ended if it did
+     * @return the state, memoized until the position changes
+     */
     public Pair<GameState, EndType> getGameState() {
+        Pair<GameState, EndType> state = layout.gameState;
+        if(state == null) layout.gameState = state = this.computeGameState();
+        return state;
+    }
+
+    private Pair<GameState, EndType> computeGameState() {
         if(info.halfMove >= 100) return Pair.of(GameState.GAME_END, EndType.DRAW_50_MOVE);
-        if(this.isCheckmate()) {
+        if(this.getRepetitions() >= 2) return Pair.of(GameState.GAME_END, EndType.DRAW_REPETITION);
+        if(this.isInsufficientMaterial()) return Pair.of(GameState.GAME_END, EndType.DRAW_INSUFFICIENT_MATERIAL);
+        if(this.board(KING) == 0) {
             return Pair.of(GameState.GAME_END, this.color == WHITE ? EndType.BLACK_WIN_CHECKMATE : EndType.WHITE_WIN_CHECKMATE);
         }
-        if(enemyBoard.isCheckmate()) {
-            return Pair.of(GameState.GAME_END, this.color == WHITE ? EndType.BLACK_WIN_CHECKMATE : EndType.WHITE_WIN_CHECKMATE);
+        if(enemyBoard.board(KING) == 0) {
+            return Pair.of(GameState.GAME_END, this.color == WHITE ? EndType.WHITE_WIN_CHECKMATE : EndType.BLACK_WIN_CHECKMATE);
         }
-        if(this.isStalemate()) {
-            return Pair.of(GameState.GAME_END, EndType.DRAW_STALEMATE);
-        }
-        if(enemyBoard.isStalemate()) {
-            return Pair.of(GameState.GAME_END, EndType.DRAW_STALEMATE);
-        }
-        GameState state;
-        if(this.info.fullMove <= 10) {
-            state = GameState.EARLY_GAME;
-        } else {
-            state = this.queen == 0 && enemyBoard.queen == 0 ? GameState.END_GAME : GameState.MIDDLE_GAME;
+        // only the side to move can run out of moves
+        BoardMap toMove = (info.turn == WHITE_TURN) == (this.color == WHITE) ? this : enemyBoard;
+        if(!toMove.hasAnyLegalMove()) {
+            if(!toMove.inCheck()) return Pair.of(GameState.GAME_END, EndType.DRAW_STALEMATE);
+            return Pair.of(GameState.GAME_END, toMove.color == WHITE ? EndType.BLACK_WIN_CHECKMATE : EndType.WHITE_WIN_CHECKMATE);
         }
-        return Pair.of(state, EndType.IN_PROGRESS);
+        return Pair.of(this.getState(), EndType.IN_PROGRESS);
+    }
+
+    /**
+     * Checks whether neither side has the material to checkmate, that is,
+     * king against king, king and a minor piece against king, or kings
+     * and bishops all standing on squares of the same color.
+     * @return whether the game is drawn by insufficient material
+     */
+    public boolean isInsufficientMaterial() {
+        long[] pieces = layout.pieces;
+        int white = BoardLayout.index(WHITE | PAWN);
+        int black = BoardLayout.index(BLACK | PAWN);
+        long mating = pieces[white] | pieces[white + ROOK - 1] | pieces[white + QUEEN - 1]
+                | pieces[black] | pieces[black + ROOK - 1] | pieces[black + QUEEN - 1];
+        if(mating != 0) return false;
+        long knights = pieces[white + KNIGHT - 1] | pieces[black + KNIGHT - 1];
+        long bishops = pieces[white + BISHOP - 1] | pieces[black + BISHOP - 1];
+        if(Long.bitCount(knights | bishops) <= 1) return true;
+        if(knights != 0) return false;
+        return (bishops & BitboardMask.LIGHT_SQUARES) == 0 || (bishops & BitboardMask.DARK_SQUARES) == 0;
+    }
+
+    /**
+     * Checks whether this side has enough material left to checkmate on its own,
+     * that is, anything more than a lone king, a single minor piece or bishops
+     * standing on squares of the same color.
+     * @return whether this side could still checkmate
+     */
+    public boolean hasMatingMaterial() {
+        if((this.board(PAWN) | this.board(ROOK) | this.board(QUEEN)) != 0) return true;
+        long knights = this.board(KNIGHT);
+        long bishops = this.board(BISHOP);
+        if(Long.bitCount(knights | bishops) <= 1) return false;
+        if(knights != 0) return true;
+        return (bishops & BitboardMask.LIGHT_SQUARES) != 0 && (bishops & BitboardMask.DARK_SQUARES) != 0;
+    }
+
+    /**
+     * Determines the outcome of this side running out of time
+     * @return a draw if the enemy could not checkmate, otherwise a win for the enemy
+     */
+    public EndType getTimeoutResult() {
+        if(!enemyBoard.hasMatingMaterial()) return EndType.DRAW_TIMEOUT_INSUFFICIENT_MATERIAL;
+        return this.color == WHITE ? EndType.BLACK_WIN_TIMEOUT : EndType.WHITE_WIN_TIMEOUT;
+    }
+
+    /**
+     * Counts how many times the current position occurred before. Only
+     * positions since the last irreversible move are considered, as no
+     * earlier position can repeat.
+     * @return the amount of earlier occurrences, 2 meaning a threefold repetition
+     */
+    public int getRepetitions() {
+        return layout.history.repetitions(layout.hash, info.halfMove);
     }
 
     public int getPieceAt(int src) {
-        // InternLogger.getLogger().debug("Debugging piece at board " + color + ": " + src);
-        int self = this.getSelfPieceAt(src, false);
-        // InternLogger.getLogger().debug("Self piece: " + Piece.asString(self));
-        if(self == NONE) return this.enemyBoard.getSelfPieceAt(src, false);
-        return self;
+        if(src < 0 || src >= 64) return NONE;
+        return layout.pieceAt(src);
     }
 
     public int getSelfPieceAt(int src, boolean fen) {
-        BoardItr itr = itr();
-        long mask = fen ? getFENMask(src) : getMask(src);
-        while (itr.hasNext()) {
-            long value = itr.next();
-            if((value & mask) != 0) {
-                // InternLogger.getLogger().debug("Self piece at board " + color + " at " + src + " with fen " + fen + ": " + Piece.asString(itr.cursorPiece() | color));
-                return itr.cursorPiece() | color;
-            }
-        }
-        // InternLogger.getLogger().debug("Self piece at board " + color + " at " + src + " with fen " + fen + ": none");
-        return NONE;
+        if(src < 0 || src >= 64) return NONE;
+        // the FEN mask counts from the largest bit
+        int piece = layout.pieceAt(fen ? 63 - src : src);
+        return Piece.color(piece) == color ? piece : NONE;
     }
 
     public int enPassantSquare() {
@@ -204,32 +479,16 @@ public class BoardMap implements Cloneable {
      * @return the fen string
      */
     public String toFENString() {
-        if(this.color == BLACK && this.enemyBoard.color == BLACK) {
-            throw new SystemError(STR."unexpected color: this and enemy board color is black. dump: \{this}, enemy=\{this.enemyBoard}");
-        }
-        if(this.color == BLACK) return this.enemyBoard.toFENString(); // Convenience purposes only.
         int[] positions = new int[69]; // pos:color
         int arrIdx = 0;
-        for(int rank = 0; rank < 8; rank++) {
-            for(int file = 7; file >= 0; file--) {
-                int pos = (rank * 8) + file;
-                int piece = this.getSelfPieceAt(pos, true);
-                int enemy = enemyBoard.getSelfPieceAt(pos, true);
-                if(piece == NONE && enemy == NONE) positions[arrIdx] = NONE;
-                if(piece == NONE) positions[arrIdx] = enemy;
-                if(enemy == NONE) positions[arrIdx] = piece;
-                if(enemy != NONE && piece != NONE) throw new SystemError(String.format("duplicate position: array=%s, pos=%d, type=%d,%d", Arrays.toString(positions), pos, piece, enemy));
-                // InternLogger.getLogger().debug("Index " + pos + " (" + Move.parseLocation(pos) + ": " + Piece.asString(positions[arrIdx]) + ") has piece ID " + positions[arrIdx]);
-                arrIdx++;
+        // FEN starts from the eighth rank
+        for(int rank = 7; rank >= 0; rank--) {
+            for(int file = 0; file < 8; file++) {
+                positions[arrIdx++] = layout.pieceAt(rank * 8 + file);
             }
         }
-        int castleState = 0;
-        if((this.castle & 0xF0) != 0) castleState |= WHITE_CASTLE_KING_SIDE;
-        if((this.castle & 0x0F) != 0) castleState |= WHITE_CASTLE_QUEEN_SIDE;
-        if((enemyBoard.castle & 0xF0) != 0) castleState |= BLACK_CASTLE_KING_SIDE;
-        if((enemyBoard.castle & 0x0F) != 0) castleState |= BLACK_CASTLE_QUEEN_SIDE;
         positions[TURN] = info.turn;
-        positions[CASTLE] = castleState;
+        positions[CASTLE] = layout.castle;
         positions[EN_PASSANT] = BoardHelper.getFENPosition(info.enPassantSquare);
         positions[HALF_MOVE] = info.halfMove;
         positions[FULL_MOVE] = info.fullMove; // Synchronized
@@ -237,47 +496,132 @@ public class BoardMap implements Cloneable {
     }
 
     public static BoardMap fromFENString(String fen) {
-        int[] layout = FEN.load(fen);
+        int[] setup = FEN.load(fen);
         int arrIdx = 0;
-        BoardMap boardMap = BoardMap.clearBoard(WHITE);
-        BoardMap enemyBoardMap = BoardMap.clearBoard(BLACK);
-        boardMap.enemyBoard = enemyBoardMap;
-        enemyBoardMap.enemyBoard = boardMap;
-        boardMap.castle = 0;
-        enemyBoardMap.castle = 0;
-        for(int rank = 0; rank < 8; rank++) {
-            for(int file = 7; file >= 0; file--) {
-                long mask = BoardMap.getFENMask((rank * 8) + file);
-                if((layout[arrIdx] & COLOR_MASK) == WHITE) {
-                    boardMap.set(layout[arrIdx] & PIECE_MASK, mask);
-                } else {
-                    enemyBoardMap.set(layout[arrIdx] & PIECE_MASK, mask);
-                }
-                arrIdx++;
+        BoardLayout layout = new BoardLayout();
+        for(int rank = 7; rank >= 0; rank--) {
+            for(int file = 0; file < 8; file++) {
+                int piece = setup[arrIdx++];
+                if(piece != NONE) layout.set(piece, getMask(rank * 8 + file));
             }
         }
+        layout.castle = setup[CASTLE];
         BoardInfo info = new BoardInfo();
-        info.turn = layout[TURN];
-        int castle = layout[CASTLE];
-        int wCastle = castle & WHITE_CASTLE_MASK;
-        int bCastle = castle & BLACK_CASTLE_MASK;
-        if((wCastle & WHITE_CASTLE_KING_SIDE) != 0) boardMap.castle |= 0xF0;
-        if((wCastle & WHITE_CASTLE_QUEEN_SIDE) != 0) boardMap.castle |= 0x0F;
-        if((bCastle & BLACK_CASTLE_KING_SIDE) != 0) enemyBoardMap.castle |= 0xF0;
-        if((bCastle & BLACK_CASTLE_QUEEN_SIDE) != 0) enemyBoardMap.castle |= 0x0F;
-        int enPassant = layout[EN_PASSANT];
+        info.turn = setup[TURN];
+        int enPassant = setup[EN_PASSANT];
         info.enPassantSquare = BoardHelper.fromFENPosition(enPassant);
-        info.halfMove = layout[HALF_MOVE];
-        info.fullMove = layout[FULL_MOVE];
-        boardMap.info = info;
-        enemyBoardMap.info = info;
+        info.halfMove = setup[HALF_MOVE];
+        info.fullMove = setup[FULL_MOVE];
+        layout.hash = Zobrist.hash(layout, info);
+        BoardMap boardMap = BoardMap.link(layout, info);
+        BoardMap enemyBoardMap = boardMap.enemyBoard;
         if(boardMap.inCheck() && info.turn == BLACK_TURN) throw new IllegalArgumentException("white in check, but it's black's turn");
         if(enemyBoardMap.inCheck() && info.turn == WHITE_TURN) throw new IllegalArgumentException("black in check, but it's white's turn");
+        boardMap.publishSnapshot();
+        return boardMap;
+    }
+
+    /**
+     * Converts this board to an immutable position
+     * @return the position
+     */
+    public Position toPosition() {
+        return new Position(layout.pieces.clone(), info.turn, layout.castle, info.enPassantSquare, info.halfMove, info.fullMove, layout.hash);
+    }
+
+    /**
+     * Creates a board from the immutable position
+     * @param position the position
+     * @return the white board
+     */
+    public static BoardMap fromPosition(Position position) {
+        BoardMap boardMap = BoardMap.load(position);
+        boardMap.publishSnapshot();
         return boardMap;
     }
 
-    private static BoardMap clearBoard(int color) {
-        return new BoardMap(0,0,0,0,0,0,color);
+    // Creates a board from the position without publishing a snapshot of it
+    static BoardMap load(Position position) {
+        BoardLayout layout = new BoardLayout();
+        long[] pieces = position.pieces();
+        for(int i = 0; i < 12; i++) {
+            layout.set((i < 6 ? WHITE : BLACK) | (i % 6 + 1), pieces[i]);
+        }
+        layout.castle = position.getCastle();
+        BoardInfo info = new BoardInfo();
+        info.turn = position.getTurn();
+        info.enPassantSquare = position.getEnPassantSquare();
+        info.halfMove = position.getHalfMove();
+        info.fullMove = position.getFullMove();
+        layout.hash = position.getHash();
+        return BoardMap.link(layout, info);
+    }
+
+    /**
+     * Writes this position in a fixed size of {@link BoardMap#SERIALIZED_SIZE} bytes.
+     * <p>
+     * The occupancy comes first as a long, followed by sixteen bytes holding one
+     * nibble per occupied square in ascending order, the lower nibble first. A nibble
+     * is the piece type, with the fourth bit set for black pieces. The remaining bytes
+     * hold the turn and castle rights, the en passant square, the half move and full
+     * move clocks as shorts, and two reserved bytes.
+     * @param buffer the buffer to write to
+     * @throws IllegalStateException if there are more than 32 pieces on the board
+     * @apiNote the full move clock is stored as an unsigned short, so games
+     * longer than 65535 moves do not round-trip.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        long occupied = layout.occupied;
+        if(Long.bitCount(occupied) > 32) throw new IllegalStateException(STR."cannot serialize \{Long.bitCount(occupied)} pieces");
+        buffer.putLong(occupied);
+        long squares = occupied;
+        for(int i = 0; i < 16; i++) {
+            int packed = 0;
+            for(int shift = 0; shift < 8 && squares != 0; shift += 4) {
+                int piece = layout.pieceAt(Long.numberOfTrailingZeros(squares));
+                packed |= ((piece & PIECE_MASK) | (Piece.color(piece) == BLACK ? 8 : 0)) << shift;
+                squares &= squares - 1;
+            }
+            buffer.put((byte) packed);
+        }
+        buffer.put((byte) (info.turn | layout.castle << 1));
+        buffer.put((byte) Math.max(info.enPassantSquare, 0));
+        buffer.putShort((short) info.halfMove);
+        buffer.putShort((short) info.fullMove);
+        buffer.putShort((short) 0); // reserved
+    }
+
+    /**
+     * Replaces this position with one read from the buffer, as written by
+     * {@link BoardMap#writeTo(ByteBuffer)}. This reuses the storage of this
+     * board and does not allocate, though the undo stack is discarded and no
+     * snapshot is published until {@link BoardMap#publishSnapshot()} is called.
+     * @param buffer the buffer to read from
+     * @throws IllegalArgumentException if the data does not describe a position
+     */
+    public void readFrom(ByteBuffer buffer) {
+        long occupied = buffer.getLong();
+        if(Long.bitCount(occupied) > 32) throw new IllegalArgumentException(STR."malformed position with \{Long.bitCount(occupied)} pieces");
+        layout.reset();
+        long squares = occupied;
+        for(int i = 0; i < 16; i++) {
+            int packed = buffer.get();
+            for(int shift = 0; shift < 8 && squares != 0; shift += 4) {
+                int nibble = packed >>> shift & 0xF;
+                int type = nibble & PIECE_MASK;
+                if(type == NONE || type > KING) throw new IllegalArgumentException(STR."malformed piece \{nibble}");
+                layout.set(type | ((nibble & 8) != 0 ? BLACK : WHITE), squares & -squares);
+                squares &= squares - 1;
+            }
+        }
+        int flags = buffer.get();
+        info.turn = flags & TURN_MASK;
+        layout.castle = flags >>> 1 & 0xF;
+        info.enPassantSquare = buffer.get();
+        info.halfMove = buffer.getShort() & 0xFFFF;
+        info.fullMove = buffer.getShort() & 0xFFFF;
+        buffer.getShort(); // reserved
+        layout.hash = Zobrist.hash(layout, info);
     }
 
     public String boardView() {
@@ -305,18 +649,18 @@ public class BoardMap implements Cloneable {
 
     /**
      * Gets all pieces mapped to a 64-bit value.
-     * @return
+     * @return the squares occupied by this side
      */
     public long getSelfBlocker() {
-        return pawn | bishop | knight | rook | queen | king;
+        return layout.occupancy[BoardLayout.side(color)];
     }
 
     /**
      * Gets all pieced from both sides of the board to a 64-bit value.
-     * @return
+     * @return the squares occupied by either side
      */
     public long getBlockers() {
-        return this.getSelfBlocker() | this.getEnemyBoard().getSelfBlocker();
+        return layout.occupied;
     }
 
     public boolean canMove(int srcPos, int destPos) {
@@ -324,6 +668,7 @@ public class BoardMap implements Cloneable {
     }
 
     public boolean canMove(int srcPos, int destPos, boolean respectTurn) {
+        if(srcPos < 0 || srcPos >= 64 || destPos < 0 || destPos >= 64) return false;
         int srcPiece = this.getPieceAt(srcPos);
         int destPiece = this.getPieceAt(destPos);
 
@@ -347,16 +692,54 @@ public class BoardMap implements Cloneable {
             }
         }
         int handlerCode = switch (srcPiece & ~COLOR_MASK) {
-            case PAWN -> verifyPawn(srcPos, destPos, destPiece, true);
+            case PAWN -> verifyPawn(srcPos, destPos, destPiece);
             case BISHOP -> verifyBishop(srcPos, destPos);
             case KNIGHT -> verifyKnight(srcPos, destPos);
             case ROOK -> verifyRook(srcPos, destPos);
             case QUEEN -> verifyQueen(srcPos, destPos);
-            case KING -> verifyKing(srcPos, destPos, false);
+            case KING -> verifyKing(srcPos, destPos);
             default -> throw new IllegalStateException(STR."Unexpected value: \{Integer.toHexString(srcPiece)}");
         };
-        if(!(handlerCode == CASTLE_FLAG) && this.revealsCheck(srcPiece & PIECE_MASK, srcPos, destPos)) return false;
-        return (handlerCode & ~PIECE_MASK) == 0;
+        if((handlerCode & ~PIECE_MASK) != 0) return false;
+        return handlerCode == CASTLE_FLAG || this.isLegal(srcPos, destPos);
+    }
+
+    /**
+     * Gets the latest published snapshot of this board, which may be queried
+     * from any thread. Snapshots are published on creation, by {@link BoardMap#update(Move)},
+     * {@link BoardMap#forceUpdate(Move)}, {@link BoardMap#unmake(Move)} and the {@code try}
+     * variants when asked to, but not by {@link BoardMap#makeMove(Move)} and
+     * {@link BoardMap#unmakeMove()}, which are meant for search.
+     * Forks do not carry the snapshot over.
+     * @return the snapshot, or null if none was published
+     */
+    public BoardSnapshot getSnapshot() {
+        return layout.snapshot;
+    }
+
+    /**
+     * Publishes a snapshot of the current position. This must be called
+     * by the thread owning the board, and only copies the position; the
+     * snapshot sets itself up once first queried.
+     * @return the snapshot
+     */
+    public BoardSnapshot publishSnapshot() {
+        BoardSnapshot snapshot = BoardSnapshot.of(this);
+        layout.snapshot = snapshot;
+        return snapshot;
+    }
+
+    /**
+     * Computes every lazily cached value of this position, so that
+     * queries afterward only read from it.
+     */
+    void warm() {
+        layout.attacks(0);
+        layout.attacks(1);
+        layout.pinned(0);
+        layout.pinned(1);
+        this.getState();
+        this.getGameState();
     }
 
     public BoardMap fork() {
@@ -364,6 +747,9 @@ public class BoardMap implements Cloneable {
         BoardMap enemy = this.enemyBoard.clone();
         current.enemyBoard = enemy;
         enemy.enemyBoard = current;
+        BoardLayout lay = layout.copy();
+        current.layout = lay;
+        enemy.layout = lay;
         BoardInfo inf = info.copy();
         current.info = inf;
         enemy.info = inf;
@@ -375,7 +761,22 @@ public class BoardMap implements Cloneable {
     }
 
     public void setTurn(int turn) {
+        // whether the en passant square counts depends on the side to play
+        layout.hash ^= Zobrist.turn(info.turn) ^ Zobrist.turn(turn)
+                ^ Zobrist.enPassant(info.enPassantSquare, layout.pieces, info.turn)
+                ^ Zobrist.enPassant(info.enPassantSquare, layout.pieces, turn);
         info.turn = turn;
+        layout.forget();
+    }
+
+    /**
+     * Gets the Zobrist key of this position. Both sides of the board
+     * share the same key.
+     * @return the key
+     * @see Zobrist
+     */
+    public long getHash() {
+        return layout.hash;
     }
 
     @Override @SuppressWarnings("all")
@@ -389,7 +790,22 @@ public class BoardMap implements Cloneable {
         }
     }
 
-    private static final int CASTLE_FLAG = 1, PROMOTION_FLAG = 2;
+    private static final int CASTLE_FLAG = 1;
+
+    // A frame on the undo stack is laid out as packed move | moved << 16 | captured << 21,
+    // followed by castle | en passant << 4 and the half-move clock.
+
+    // Castle rights revoked by a move touching the square, shared with Position
+    static final int[] CASTLE_REVOKE = new int[64];
+
+    static {
+        CASTLE_REVOKE[0] = WHITE_CASTLE_QUEEN_SIDE;
+        CASTLE_REVOKE[4] = WHITE_CASTLE_MASK;
+        CASTLE_REVOKE[7] = WHITE_CASTLE_KING_SIDE;
+        CASTLE_REVOKE[56] = BLACK_CASTLE_QUEEN_SIDE;
+        CASTLE_REVOKE[60] = BLACK_CASTLE_MASK;
+        CASTLE_REVOKE[63] = BLACK_CASTLE_KING_SIDE;
+    }
 
     /**
      * handles the move
@@ -397,14 +813,18 @@ public class BoardMap implements Cloneable {
      * @param srcPos the source position
      * @param destPos the destination position
      * @param destPiece the captured piece
+     * @param promotion the piece type to promote to
      * @param forced whether this move should ignore all validity checks
+     * @param publish whether to publish a snapshot once the move is made
+     * @return the result, see {@link MoveStatus}
      */
-    private MovementEvent handleMove(int srcPiece, int srcPos, int destPos, int destPiece, Move move, boolean forced) {
-        InternLogger.getLogger().debug(STR."Source: \{srcPos}, Destination: \{destPos} (Origin: \{srcPos + 1}, \{destPos + 1})");
-        InternLogger.getLogger().debug(STR."State: \{BoardHelper.getPositionString(srcPos + 1)}, \{BoardHelper.getPositionString(destPos + 1)}");
-        InternLogger.getLogger().debug(STR."Has: \{Piece.asString(srcPiece)}, To: \{Piece.asString(destPiece)}");
-        long srcMask = getMask(srcPos);
-        long destMask = getMask(destPos);
+    private int handleMove(int srcPiece, int srcPos, int destPos, int destPiece, int promotion, boolean forced, boolean publish) {
+        // the messages are built eagerly, so skip them entirely unless logging
+        if(InternLogger.isEnabled()) {
+            InternLogger.getLogger().debug(STR."Source: \{srcPos}, Destination: \{destPos} (Origin: \{srcPos + 1}, \{destPos + 1})");
+            InternLogger.getLogger().debug(STR."State: \{BoardHelper.getPositionString(srcPos + 1)}, \{BoardHelper.getPositionString(destPos + 1)}");
+            InternLogger.getLogger().debug(STR."Has: \{Piece.asString(srcPiece)}, To: \{Piece.asString(destPiece)}");
+        }
 
         /* Verifying the result, 0 is OK
         * Check should include path checks and other processing,
@@ -412,132 +832,478 @@ public class BoardMap implements Cloneable {
         * checked it before masks were even retrieved.       */
 
         int handlerCode = switch (srcPiece & ~COLOR_MASK) {
-            case PAWN -> verifyPawn(srcPos, destPos, destPiece, false);
+            case PAWN -> verifyPawn(srcPos, destPos, destPiece);
             case BISHOP -> verifyBishop(srcPos, destPos);
             case KNIGHT -> verifyKnight(srcPos, destPos);
             case ROOK -> verifyRook(srcPos, destPos);
             case QUEEN -> verifyQueen(srcPos, destPos);
-            case KING -> verifyKing(srcPos, destPos, true);
+            case KING -> verifyKing(srcPos, destPos);
             default -> throw new IllegalStateException(STR."Unexpected value: \{srcPiece & ~COLOR_MASK}");
         };
         boolean castleFlag = handlerCode == CASTLE_FLAG;
-        boolean promoFlag = handlerCode == PROMOTION_FLAG;
-        MovementEvent error = translate(handlerCode);
-        // error.code() & 0x07 is not 0
-        boolean specialFlag = (handlerCode & PIECE_MASK) != 0;
-        if(error != null && !forced) return error;
+        // codes within the piece mask denote success
+        if((handlerCode & ~PIECE_MASK) != 0 && !forced) return MoveStatus.fromCode(handlerCode);
 
-        // exclusion in castling: special move does not reflect to actual position
-        if(!castleFlag && this.revealsCheck(srcPiece & PIECE_MASK, srcPos, destPos)) return MovementEvent.REVEALS_CHECK;
+        // exclusion in castling: legality is checked by doCastle
+        if(!castleFlag && !this.isLegal(srcPos, destPos)) return MoveStatus.REVEALS_CHECK;
 
         // Anything past this line is not going to be interrupted.
-        // Note: even though specialFlag checks for only the last 3 bits,
-        // the event translation code has fended off all the possible errors.
+        this.makeMove(encode(srcPos, destPos, promotion, srcPiece, destPiece, info.enPassantSquare));
 
-        info.halfMove++;
+        if(Zobrist.isVerify()) this.verifyHash();
+        if(publish) this.publishSnapshot();
 
-        boolean enpFlag = false;
-        /* Calculating 50-move rule and en passant */
-        if(Piece.is(srcPiece, PAWN)) {
-            info.halfMove = 0;
+        return MoveStatus.of(MoveStatus.OK, srcPiece, destPiece);
+    }
 
-            if(destPos == info.enPassantSquare) {
-                if(this.color == WHITE) {
-                    this.enemyBoard.clear(PAWN, 1L << (info.enPassantSquare + BACKWARD_OFFSET));
-                } else {
-                    this.enemyBoard.clear(PAWN, 1L << (info.enPassantSquare + FORWARD_OFFSET));
-                }
-                enpFlag = true;
+    /**
+     * Makes the packed move without validating it, trusting its flags
+     * rather than deriving them from the board. The move is made for the
+     * side owning the moved piece, and can be taken back with {@link BoardMap#unmakeMove()}.
+     * @param move the move, see {@link PackedMove}
+     * @see BoardMap#encode(Move, int)
+     */
+    public void makeMove(int move) {
+        BoardLayout layout = this.layout;
+        int src = PackedMove.from(move);
+        int dest = PackedMove.to(move);
+        int flags = PackedMove.flags(move);
+        int piece = layout.pieceAt(src);
+        if(piece == NONE) throw new IllegalArgumentException(STR."no piece to move at \{BoardHelper.getPositionString(src)}");
+        int mover = Piece.color(piece);
+        int captured = switch (flags) {
+            case PackedMove.EN_PASSANT -> (mover ^ COLOR_MASK) | PAWN;
+            case PackedMove.KING_CASTLE, PackedMove.QUEEN_CASTLE -> NONE;
+            default -> PackedMove.isCapture(move) ? layout.pieceAt(dest) : NONE;
+        };
+        layout.history.push(layout.hash);
+        // the en passant key depends on the pawns, so it is taken out before they move
+        long enPassantKey = Zobrist.enPassant(info.enPassantSquare, layout.pieces, info.turn);
+        layout.push((move & 0xFFFF) | piece << 16 | captured << 21,
+                layout.castle | (info.enPassantSquare & 0xFF) << 4,
+                info.halfMove);
+
+        switch (flags) {
+            case PackedMove.KING_CASTLE, PackedMove.QUEEN_CASTLE -> {
+                int rank = src & ~7;
+                boolean kingSide = flags == PackedMove.KING_CASTLE;
+                int rook = mover | ROOK;
+                layout.clear(piece, 1L << src);
+                layout.clear(rook, 1L << (rank + (kingSide ? 7 : 0)));
+                layout.set(piece, 1L << dest);
+                layout.set(rook, 1L << (rank + (kingSide ? 5 : 3)));
             }
-
-            if(Math.abs(BoardHelper.getRank(srcPos) - BoardHelper.getRank(destPos)) != 2) {
-                this.info.enPassantSquare = -1;
+            case PackedMove.EN_PASSANT -> {
+                // the captured pawn stands beside the source, on the file of the destination
+                layout.clear(captured, 1L << ((src & ~7) | (dest & 7)));
+                layout.clear(piece, 1L << src);
+                layout.set(piece, 1L << dest);
+            }
+            default -> {
+                if(captured != NONE) layout.clear(captured, 1L << dest);
+                layout.clear(piece, 1L << src);
+                layout.set(PackedMove.isPromotion(move) ? mover | PackedMove.promotion(move) : piece, 1L << dest);
             }
         }
-        /* Castle rights too */
-        if(Piece.is(srcPiece, KING)) {
-            castle &= ~0xFF;
+
+        info.halfMove = (piece & PIECE_MASK) == PAWN || captured != NONE ? 0 : info.halfMove + 1;
+        if(mover == BLACK) info.fullMove++;
+        layout.setCastle(layout.castle & ~(CASTLE_REVOKE[src] | CASTLE_REVOKE[dest]));
+        info.enPassantSquare = flags == PackedMove.DOUBLE_PUSH ? (src + dest) >>> 1 : 0;
+        info.turn ^= TURN_MASK;
+        layout.hash ^= Zobrist.turn(BLACK_TURN) ^ enPassantKey ^ Zobrist.enPassant(info.enPassantSquare, layout.pieces, info.turn);
+    }
+
+    /**
+     * Cross-checks the incrementally updated key against a key computed
+     * from scratch.
+     * @throws SystemError if the keys mismatch
+     */
+    private void verifyHash() {
+        long expected = Zobrist.hash(layout, info);
+        if(layout.hash != expected) {
+            throw new SystemError(STR."hash mismatch: incremental \{Long.toHexString(layout.hash)}, expected \{Long.toHexString(expected)} at \{this.toFENString()}");
         }
+    }
 
-        /* Castle rights */
-        // moved rook
-        if(Piece.is(srcPiece, ROOK)) {
-            if(BoardHelper.getFile(srcPos) == 0) {
-                castle &= ~0xF0; // king side
-            } else {
-                castle &= ~0x0F; // queen side
-            }
+    /**
+     * Checks whether the move leaves the king of this side safe. The move
+     * itself is assumed to be valid otherwise, and castling is not handled here.
+     * The piece must belong to this side, see {@link BoardMap#tryForceUpdate(Move, boolean)}.
+     * @param srcPos the source position
+     * @param destPos the destination position
+     * @return whether the move is legal
+     */
+    private boolean isLegal(int srcPos, int destPos) {
+        long king = this.board(KING);
+        if(king == 0) return false; // no king is treated as always being in check
+        int kingSquare = Long.numberOfTrailingZeros(king);
+        int side = BoardLayout.side(color);
+        int piece = layout.pieceAt(srcPos);
+        long from = 1L << srcPos;
+        long to = 1L << destPos;
+        if(Piece.is(piece, KING)) {
+            // the king no longer blocks the rays of whatever is attacking it
+            return layout.attackersTo(destPos, side ^ 1, layout.occupied & ~from) == 0;
         }
-        // captured rook
-        if(Piece.is(destPiece, ROOK) && !castleFlag) {
-            if(BoardHelper.getFile(destPos) == 0) {
-                enemyBoard.castle &= ~0xF0;
-            } else {
-                enemyBoard.castle &= ~0x0F;
-            }
+        if(Piece.is(piece, PAWN) && destPos == info.enPassantSquare && destPos > 0
+                && BoardHelper.getFile(srcPos) != BoardHelper.getFile(destPos) && layout.pieceAt(destPos) == NONE) {
+            // two pieces leave the rank at once, which the pin masks do not cover
+            long captured = 1L << ((srcPos & ~7) | (destPos & 7));
+            return layout.attackersTo(kingSquare, side ^ 1, (layout.occupied & ~from & ~captured) | to) == 0;
+        }
+        long checkers = layout.checkers(side);
+        if(checkers != 0) {
+            if((checkers & (checkers - 1)) != 0) return false; // double check, only the king may move
+            if((to & (checkers | AttackTable.between(kingSquare, Long.numberOfTrailingZeros(checkers)))) == 0) return false;
         }
+        return (layout.pinned(side) & from) == 0 || (to & AttackTable.line(kingSquare, srcPos)) != 0;
+    }
 
-        // Past this line is when all moves are confirmed to be valid
+    /**
+     * Gets the enemy pieces giving check to the king of this side
+     * @return the checkers
+     */
+    public long getCheckers() {
+        return layout.checkers(BoardLayout.side(color));
+    }
 
-        // Checking for special flags: If a special flag is on, it indicates
-        // that processing of piece checking has already been achieved and hence
-        // clear/retain does not need to be executed.
-        if(!specialFlag) {
-            clear(srcPiece & ~COLOR_MASK, srcMask);
-            set(srcPiece & ~COLOR_MASK, destMask);
-        }
+    /**
+     * Gets the pieces of this side pinned to its own king, which may
+     * only move along the line between the king and the pinning piece
+     * @return the pinned pieces
+     * @see AttackTable#line(int, int)
+     */
+    public long getPinned() {
+        return layout.pinned(BoardLayout.side(color));
+    }
+
+    public boolean isCheckmate() {
+       return this.board(KING) == 0 || (this.inCheck() && !this.hasAnyLegalMove());
+    }
 
-        if(info.turn == BLACK_TURN) {
-            info.fullMove++;
+    /**
+     * Checks whether this side has no legal move, regardless of being in check
+     * @return whether this side cannot move
+     */
+    public boolean isStalemate() {
+        return !this.hasAnyLegalMove();
+    }
+
+    /**
+     * Checks whether this side has any legal move, regardless of the turn to play.
+     * This stops at the first legal move found, trying king moves first, and
+     * only considers moves resolving the check if there is one.
+     * @return whether a legal move exists
+     */
+    public boolean hasAnyLegalMove() {
+        long king = this.board(KING);
+        if(king == 0) return false;
+        int kingSquare = Long.numberOfTrailingZeros(king);
+        long own = this.getSelfBlocker();
+        // castling is not needed: if it is legal, so is the king stepping towards the rook
+        if(this.anyLegal(kingSquare, AttackTable.getDirect(KING, kingSquare) & ~own)) return true;
+
+        long checkers = this.getCheckers();
+        if((checkers & (checkers - 1)) != 0) return false; // double check, only the king may move
+        long evasions = checkers == 0 ? -1L : checkers | AttackTable.between(kingSquare, Long.numberOfTrailingZeros(checkers));
+        long targets = ~own & evasions;
+        long occupied = layout.occupied;
+
+        long knights = this.board(KNIGHT);
+        for(; knights != 0; knights &= knights - 1) {
+            int square = Long.numberOfTrailingZeros(knights);
+            if(this.anyLegal(square, AttackTable.getDirect(KNIGHT, square) & targets)) return true;
+        }
+        long diagonal = this.board(BISHOP) | this.board(QUEEN);
+        for(; diagonal != 0; diagonal &= diagonal - 1) {
+            int square = Long.numberOfTrailingZeros(diagonal);
+            if(this.anyLegal(square, NativeMagicBoard.getBishop(occupied, square) & targets)) return true;
+        }
+        long straight = this.board(ROOK) | this.board(QUEEN);
+        for(; straight != 0; straight &= straight - 1) {
+            int square = Long.numberOfTrailingZeros(straight);
+            if(this.anyLegal(square, NativeMagicBoard.getRook(occupied, square) & targets)) return true;
         }
 
-        // has a piece at destination, and en passant is not in place,
-        // handle here.
-        // en passant captures are handled earlier.
-        if(destPiece != NONE && !enpFlag && !castleFlag) {
-            info.halfMove = 0;
-            enemyBoard.clear(destPiece & ~COLOR_MASK, destMask);
+        long pawns = this.board(PAWN);
+        long empty = ~occupied;
+        int forward = color == WHITE ? FORWARD_OFFSET : -FORWARD_OFFSET;
+        long single = color == WHITE ? (pawns << 8) & empty : (pawns >>> 8) & empty;
+        // pawns pushed from their starting rank may advance once more
+        long doubles = color == WHITE ? ((single & 0xFF0000L) << 8) & empty : ((single & 0xFF0000000000L) >>> 8) & empty;
+        for(long pushes = single & evasions; pushes != 0; pushes &= pushes - 1) {
+            int square = Long.numberOfTrailingZeros(pushes);
+            if(this.isLegal(square - forward, square)) return true;
         }
+        for(long pushes = doubles & evasions; pushes != 0; pushes &= pushes - 1) {
+            int square = Long.numberOfTrailingZeros(pushes);
+            if(this.isLegal(square - 2 * forward, square)) return true;
+        }
+        long captures = enemyBoard.getSelfBlocker() & evasions;
+        int enPassant = info.enPassantSquare;
+        // en passant may capture a checking pawn without landing on it, isLegal handles it
+        if(enPassant > 0 && BoardHelper.getRank(enPassant) == (color == WHITE ? 5 : 2)) captures |= 1L << enPassant;
+        for(; pawns != 0; pawns &= pawns - 1) {
+            int square = Long.numberOfTrailingZeros(pawns);
+            if(this.anyLegal(square, AttackTable.getDirect(color | PAWN, square) & captures)) return true;
+        }
+        return false;
+    }
 
-        info.turn ^= TURN_MASK;
+    // Whether any of the destinations is a legal move for the piece on the square
+    private boolean anyLegal(int square, long destinations) {
+        for(; destinations != 0; destinations &= destinations - 1) {
+            if(this.isLegal(square, Long.numberOfTrailingZeros(destinations))) return true;
+        }
+        return false;
+    }
 
-        return new MovementEvent(srcPiece, destPiece, move);
+    /**
+     * Generates the legal moves of this side, regardless of the turn to play,
+     * appending them to the list. See {@link BoardMap#generateMoves(MoveList, long, long)}.
+     * @param list the list
+     * @return the amount of moves in the list
+     */
+    public int generateMoves(MoveList list) {
+        return this.generateMoves(list, -1L, -1L);
     }
 
-    private boolean revealsCheck(int piece, int srcPos, int destPos) {
-        long sourceMask = getMask(srcPos);
-        long destMask = getMask(destPos);
-        int enemyPiece = enemyBoard.getSelfPieceAt(destPos, false) & PIECE_MASK;
-        boolean flag = enemyPiece != NONE;
-        // TODO: Find the cause of promotion moves/special moves passing NONE here.
-        if(this.getSelfPieceAt(srcPos, false) == NONE) return false;
-        try {
-            this.clear(piece, sourceMask);
-            this.set(piece, destMask);
-            if(flag) {
-                enemyBoard.clear(enemyPiece, destMask);
-            }
-            return this.inCheck();
-        } finally {
-            this.set(piece, sourceMask);
-            this.clear(piece, destMask);
-            if(flag) {
-                enemyBoard.set(enemyPiece, destMask);
+    /**
+     * Generates the legal moves of this side, regardless of the turn to play,
+     * appending them to the list. Moves are generated piece type by piece type
+     * on whole bitboards, restricted by the pin masks, so no move needs to be
+     * tried on the board. Positions in check are handed to
+     * {@link BoardMap#generateEvasions(MoveList, long, long)}.
+     * <p>
+     * Moves are packed as described by {@link PackedMove}, and promotions
+     * are added once per piece that can be promoted to.
+     * @param list the list
+     * @param sources the squares to generate moves from
+     * @param destinations the squares to generate moves to, castles landing
+     *                     on the destination of the king and en passant on the en passant square
+     * @return the amount of moves in the list
+     */
+    public int generateMoves(MoveList list, long sources, long destinations) {
+        long king = this.board(KING);
+        if(king == 0) return list.size(); // no king is treated as always being in check
+        int kingSquare = Long.numberOfTrailingZeros(king);
+        int side = BoardLayout.side(color);
+        if(layout.checkers(side) != 0) return this.generateEvasions(list, sources, destinations);
+        long own = this.getSelfBlocker();
+        long enemy = enemyBoard.getSelfBlocker();
+        long occupied = layout.occupied;
+
+        if((king & sources) != 0) {
+            this.addKingSteps(list, kingSquare, destinations);
+            int rank = kingSquare & ~7;
+            if((destinations & 1L << (rank + 6)) != 0 && this.doCastle(CASTLE_K_MASK)) list.add(PackedMove.of(kingSquare, rank + 6, PackedMove.KING_CASTLE));
+            if((destinations & 1L << (rank + 2)) != 0 && this.doCastle(CASTLE_Q_MASK)) list.add(PackedMove.of(kingSquare, rank + 2, PackedMove.QUEEN_CASTLE));
+        }
+
+        long targets = ~own & destinations;
+        long pinned = layout.pinned(side);
+
+        // a pinned knight can never stay on the line
+        for(long knights = this.board(KNIGHT) & sources & ~pinned; knights != 0; knights &= knights - 1) {
+            int square = Long.numberOfTrailingZeros(knights);
+            addMoves(list, square, AttackTable.getDirect(KNIGHT, square) & targets, enemy);
+        }
+        for(long diagonal = (this.board(BISHOP) | this.board(QUEEN)) & sources; diagonal != 0; diagonal &= diagonal - 1) {
+            int square = Long.numberOfTrailingZeros(diagonal);
+            long attacks = NativeMagicBoard.getBishop(occupied, square) & targets;
+            if((pinned & 1L << square) != 0) attacks &= AttackTable.line(kingSquare, square);
+            addMoves(list, square, attacks, enemy);
+        }
+        for(long straight = (this.board(ROOK) | this.board(QUEEN)) & sources; straight != 0; straight &= straight - 1) {
+            int square = Long.numberOfTrailingZeros(straight);
+            long attacks = NativeMagicBoard.getRook(occupied, square) & targets;
+            if((pinned & 1L << square) != 0) attacks &= AttackTable.line(kingSquare, square);
+            addMoves(list, square, attacks, enemy);
+        }
+
+        long pawns = this.board(PAWN) & sources;
+        long empty = ~occupied;
+        boolean white = color == WHITE;
+        int forward = white ? FORWARD_OFFSET : -FORWARD_OFFSET;
+        long single = white ? (pawns << 8) & empty : (pawns >>> 8) & empty;
+        // pawns pushed from their starting rank may advance once more
+        long doubles = white ? ((single & 0xFF0000L) << 8) & empty : ((single & 0xFF0000000000L) >>> 8) & empty;
+        this.addPawnMoves(list, single & destinations, forward, kingSquare, pinned, PackedMove.QUIET);
+        this.addPawnMoves(list, doubles & destinations, 2 * forward, kingSquare, pinned, PackedMove.DOUBLE_PUSH);
+        long captures = enemy & destinations;
+        // towards the a file and towards the h file, as seen from white
+        long west = white ? (pawns << 7) & ~BitboardMask.getFileMask(7) : (pawns >>> 9) & ~BitboardMask.getFileMask(7);
+        long east = white ? (pawns << 9) & ~BitboardMask.getFileMask(0) : (pawns >>> 7) & ~BitboardMask.getFileMask(0);
+        this.addPawnMoves(list, west & captures, forward - 1, kingSquare, pinned, PackedMove.CAPTURE);
+        this.addPawnMoves(list, east & captures, forward + 1, kingSquare, pinned, PackedMove.CAPTURE);
+
+        int enPassant = info.enPassantSquare;
+        if(enPassant > 0 && BoardHelper.getRank(enPassant) == (white ? 5 : 2) && (destinations & 1L << enPassant) != 0) {
+            // two pieces leave the rank at once, isLegal simulates it
+            for(long from = AttackTable.getPawnAttacks(color ^ COLOR_MASK, 1L << enPassant) & pawns; from != 0; from &= from - 1) {
+                int square = Long.numberOfTrailingZeros(from);
+                if(this.isLegal(square, enPassant)) list.add(PackedMove.of(square, enPassant, PackedMove.EN_PASSANT));
             }
         }
+        return list.size();
     }
 
-    public boolean isCheckmate() {
-       return this.king == 0 || (this.isStalemate() && this.inCheck());
+    // Piece values for exchanges, indexed by type. The king is never captured.
+    private static final int[] EXCHANGE_VALUE = {0, 100, 320, 330, 500, 900, 0};
+
+    /**
+     * Evaluates the exchange started by the move on its destination square,
+     * assuming both sides keep recapturing with their least valuable piece
+     * while it pays off. Pins are not considered.
+     * @param move the move, see {@link PackedMove}
+     * @param threshold the material to gain at least, in centipawns
+     * @return whether the exchange gains at least the threshold
+     */
+    public boolean seeAtLeast(int move, int threshold) {
+        if(PackedMove.isCastle(move)) return threshold <= 0;
+        int src = PackedMove.from(move);
+        int dest = PackedMove.to(move);
+        long[] pieces = layout.pieces;
+        long occupied = layout.occupied ^ 1L << src ^ 1L << dest;
+        int captured;
+        if(PackedMove.isEnPassant(move)) {
+            captured = PAWN;
+            occupied ^= 1L << ((src & ~7) | (dest & 7));
+        } else {
+            captured = layout.pieceAt(dest) & PIECE_MASK;
+        }
+        int swap = EXCHANGE_VALUE[captured] - threshold;
+        if(swap < 0) return false;
+        swap = EXCHANGE_VALUE[layout.pieceAt(src) & PIECE_MASK] - swap;
+        if(swap <= 0) return true;
+
+        long diagonal = pieces[BISHOP - 1] | pieces[QUEEN - 1] | pieces[6 + BISHOP - 1] | pieces[6 + QUEEN - 1];
+        long straight = pieces[ROOK - 1] | pieces[QUEEN - 1] | pieces[6 + ROOK - 1] | pieces[6 + QUEEN - 1];
+        long attackers = layout.attackersTo(dest, 0, occupied) | layout.attackersTo(dest, 1, occupied);
+        int side = BoardLayout.side(color);
+        // flips on every capture, 1 meaning the side making the move comes out ahead
+        int result = 1;
+        while(true) {
+            side ^= 1;
+            attackers &= occupied;
+            long own = attackers & layout.occupancy[side];
+            if(own == 0) break;
+            result ^= 1;
+            int type = PAWN;
+            while((own & pieces[side * 6 + type - 1]) == 0) type++;
+            // the king may only capture if nothing recaptures
+            if(type == KING) return ((attackers & ~layout.occupancy[side]) != 0 ? result ^ 1 : result) == 1;
+            swap = EXCHANGE_VALUE[type] - swap;
+            if(swap < result) break;
+            occupied ^= Long.lowestOneBit(own & pieces[side * 6 + type - 1]);
+            // pieces behind the one that just captured join in
+            if(type == PAWN || type == BISHOP || type == QUEEN) attackers |= NativeMagicBoard.getBishop(occupied, dest) & diagonal;
+            if(type == ROOK || type == QUEEN) attackers |= NativeMagicBoard.getRook(occupied, dest) & straight;
+        }
+        return result == 1;
     }
 
-    public boolean isStalemate() {
-        List<Move> moves = new LinkedList<>();
-        MoveGenerator gen = MoveGenerator.create(this);
-        for(int i = 0; i < 64; i++) {
-            moves.addAll(gen.getValidMovesFor(i, false));
+    private static void addMoves(MoveList list, int square, long destinations, long enemy) {
+        for(; destinations != 0; destinations &= destinations - 1) {
+            int dest = Long.numberOfTrailingZeros(destinations);
+            list.add(PackedMove.of(square, dest, (enemy & 1L << dest) != 0 ? PackedMove.CAPTURE : PackedMove.QUIET));
+        }
+    }
+
+    // Adds the pawn moves landing on the destinations, each coming from offset squares behind
+    private void addPawnMoves(MoveList list, long destinations, int offset, int kingSquare, long pinned, int flags) {
+        for(; destinations != 0; destinations &= destinations - 1) {
+            int dest = Long.numberOfTrailingZeros(destinations);
+            int square = dest - offset;
+            if((pinned & 1L << square) != 0 && (AttackTable.line(kingSquare, square) & 1L << dest) == 0) continue;
+            addPawnMove(list, square, dest, flags);
+        }
+    }
+
+    private static void addPawnMove(MoveList list, int square, int dest, int flags) {
+        if(dest >= 56 || dest < 8) {
+            for(int type = KNIGHT; type <= QUEEN; type++) list.add(PackedMove.promotion(square, dest, type, flags == PackedMove.CAPTURE));
+        } else {
+            list.add(PackedMove.of(square, dest, flags));
+        }
+    }
+
+    // Adds the king moves to squares the enemy does not attack
+    private void addKingSteps(MoveList list, int kingSquare, long destinations) {
+        int side = BoardLayout.side(color);
+        long enemy = enemyBoard.getSelfBlocker();
+        // the king no longer blocks the rays of whatever is attacking it
+        long free = layout.occupied & ~(1L << kingSquare);
+        for(long steps = AttackTable.getDirect(KING, kingSquare) & ~this.getSelfBlocker() & destinations; steps != 0; steps &= steps - 1) {
+            int dest = Long.numberOfTrailingZeros(steps);
+            if(layout.attackersTo(dest, side ^ 1, free) == 0) list.add(PackedMove.of(kingSquare, dest, (enemy & 1L << dest) != 0 ? PackedMove.CAPTURE : PackedMove.QUIET));
+        }
+    }
+
+    /**
+     * Generates the legal moves of this side while its king is in check, appending
+     * them to the list. Out of a double check only the king may move. A single check
+     * may also be resolved by capturing the checker or by interposing between it and
+     * the king, so only the pieces reaching those squares are looked at. Pinned pieces
+     * never resolve a check, as they would have to leave their line.
+     * @param list the list
+     * @param sources the squares to generate moves from
+     * @param destinations the squares to generate moves to
+     * @return the amount of moves in the list
+     * @see BoardMap#generateMoves(MoveList, long, long)
+     */
+    public int generateEvasions(MoveList list, long sources, long destinations) {
+        long king = this.board(KING);
+        if(king == 0) return list.size();
+        int kingSquare = Long.numberOfTrailingZeros(king);
+        int side = BoardLayout.side(color);
+        if((king & sources) != 0) this.addKingSteps(list, kingSquare, destinations);
+        long checkers = layout.checkers(side);
+        if(checkers == 0 || (checkers & (checkers - 1)) != 0) return list.size();
+
+        int checker = Long.numberOfTrailingZeros(checkers);
+        long occupied = layout.occupied;
+        long pawns = this.board(PAWN);
+        long movable = this.getSelfBlocker() & ~king & ~layout.pinned(side) & sources;
+        if((checkers & destinations) != 0) {
+            for(long capturers = layout.attackersTo(checker, side, occupied) & movable; capturers != 0; capturers &= capturers - 1) {
+                int square = Long.numberOfTrailingZeros(capturers);
+                if((pawns & 1L << square) != 0) {
+                    addPawnMove(list, square, checker, PackedMove.CAPTURE);
+                } else {
+                    list.add(PackedMove.of(square, checker, PackedMove.CAPTURE));
+                }
+            }
         }
-        return moves.isEmpty();
+
+        boolean white = color == WHITE;
+        int forward = white ? FORWARD_OFFSET : -FORWARD_OFFSET;
+        int enPassant = info.enPassantSquare;
+        if(enPassant > 0 && BoardHelper.getRank(enPassant) == (white ? 5 : 2) && (destinations & 1L << enPassant) != 0) {
+            // removes a checking pawn without landing on it, isLegal simulates it
+            for(long from = AttackTable.getPawnAttacks(color ^ COLOR_MASK, 1L << enPassant) & pawns & movable; from != 0; from &= from - 1) {
+                int square = Long.numberOfTrailingZeros(from);
+                if(this.isLegal(square, enPassant)) list.add(PackedMove.of(square, enPassant, PackedMove.EN_PASSANT));
+            }
+        }
+
+        for(long blocks = AttackTable.between(kingSquare, checker) & destinations; blocks != 0; blocks &= blocks - 1) {
+            int block = Long.numberOfTrailingZeros(blocks);
+            // pawns only capture diagonally, so they can only block by advancing
+            for(long blockers = layout.attackersTo(block, side, occupied) & movable & ~pawns; blockers != 0; blockers &= blockers - 1) {
+                list.add(PackedMove.of(Long.numberOfTrailingZeros(blockers), block, PackedMove.QUIET));
+            }
+            int behind = block - forward;
+            if(behind < 0 || behind >= 64) continue;
+            if((pawns & movable & 1L << behind) != 0) {
+                addPawnMove(list, behind, block, PackedMove.QUIET);
+            } else if((occupied & 1L << behind) == 0 && BoardHelper.getRank(block) == (white ? 3 : 4)
+                    && (pawns & movable & 1L << (behind - forward)) != 0) {
+                list.add(PackedMove.of(behind - forward, block, PackedMove.DOUBLE_PUSH));
+            }
+        }
+        return list.size();
     }
 
     // Section to verify the validity of a movement.
@@ -551,8 +1317,7 @@ public class BoardMap implements Cloneable {
     // TODO: This is too complex for our own goods.
     // Simplifications may be needed.
     // Would having 4 if-statement to check for advancing and captures be better?
-    @Modifies({"info.enPassantSquare"})
-    private int verifyPawn(int srcPos, int destPos, int destPiece, boolean verify) {
+    private int verifyPawn(int srcPos, int destPos, int destPiece) {
         int file = BoardHelper.getFile(srcPos);
         int destFile = BoardHelper.getFile(destPos);
         int rank = BoardHelper.getRank(srcPos);
@@ -572,7 +1337,7 @@ public class BoardMap implements Cloneable {
         }
         if ((Math.abs(file - destFile) == 1 && destPiece == NONE) || (file == destFile && destPiece != NONE)) {
             // InternLogger.getLogger().debug("Captures nothing / Advances into something");
-            if(destPos == info.enPassantSquare) {
+            if(destPos == info.enPassantSquare && info.enPassantSquare > 0) {
                 int en = BoardHelper.getRank(info.enPassantSquare);
                 if((this.color == WHITE && en == 2) || (this.color == BLACK && en == 5)) {
                     return MovementEvent.ILLEGAL.code();
@@ -595,29 +1360,6 @@ public class BoardMap implements Cloneable {
                 // InternLogger.getLogger().debug("Pawn advances past something");
                 return MovementEvent.ILLEGAL.code();
             }
-            if(!verify) {
-                info.enPassantSquare = srcPos + (info.turn == WHITE_TURN ? FORWARD_OFFSET : -FORWARD_OFFSET);
-            }
-        }
-        if(!verify) {
-            // promotion logic
-            // TODO: Ask what piece to promote to
-            if(this.color == WHITE && destRank == 7) {
-                long mask = getMask(srcPos);
-                long clearMask = getMask(destPos);
-                enemyBoard.clear(destPiece & PIECE_MASK, clearMask);
-                clear(PAWN, mask);
-                set(QUEEN, clearMask);
-                return PROMOTION_FLAG;
-            }
-            if(this.color == BLACK && destRank == 0) {
-                long mask = getMask(srcPos);
-                long clearMask = getMask(destPos);
-                enemyBoard.clear(destPiece & PIECE_MASK, clearMask);
-                clear(PAWN, mask);
-                set(QUEEN, clearMask);
-                return PROMOTION_FLAG;
-            }
         }
         return 0;
     }
@@ -710,10 +1452,11 @@ public class BoardMap implements Cloneable {
     }
 
     @Special
-    private int verifyKing(int srcPos, int destPos, boolean shouldCastle) {
+    private int verifyKing(int srcPos, int destPos) {
         if(this.getSelfPieceAt(destPos, false) == (color | ROOK)) {
-            int kq = BoardHelper.getFile(destPos) == 7 ? CASTLE_K_MASK : BoardHelper.getFile(destPos) == 0 ? CASTLE_Q_MASK : 0;
-            if(!doCastle(kq, shouldCastle)) {
+            // the rook has to stand in a corner of the rank of the king
+            int kq = destPos == (srcPos | 7) ? CASTLE_K_MASK : destPos == (srcPos & ~7) ? CASTLE_Q_MASK : 0;
+            if(!doCastle(kq)) {
                 return MovementEvent.ILLEGAL.code();
             } else {
                 return CASTLE_FLAG;
@@ -722,7 +1465,7 @@ public class BoardMap implements Cloneable {
         if(this.checkMethod.useBits()) {
             long mask = AttackTable.getMaskAt(KING, srcPos);
             long destMask = getMask(destPos);
-            long attackMask = enemyBoard.getAttackRay();
+            long attackMask = enemyBoard.getAttackMask();
             if((destMask & ~attackMask) == 0) return MovementEvent.ILLEGAL.code();
             return (destMask & mask) != 0 ? 0 : MovementEvent.ILLEGAL.code();
         }
@@ -743,64 +1486,53 @@ public class BoardMap implements Cloneable {
     private static final long WHITE_CASTLE_Q_BLOCKER_MASK = 0b00001110;
     private static final long WHITE_CASTLE_Q_ATTACKER_MASK = 0b00001100;
 
-    @MaskType(Mask.CLEAR)
-    private static final long K_PRESERVE_MASK = 0b10000000;
-    private static final long Q_PRESERVE_MASK = 0b00000001;
-    private static final long BLACK_K_PRESERVE_MASK = K_PRESERVE_MASK << 56;
-    private static final long BLACK_Q_PRESERVE_MASK = Q_PRESERVE_MASK << 56;
-
     @MaskType(Mask.CLEAR)
     private static final long BLACK_CASTLE_K_ATTACKER_MASK = WHITE_CASTLE_K_ATTACKER_MASK << 56;
     private static final long BLACK_CASTLE_K_BLOCKER_MASK = WHITE_CASTLE_K_BLOCKER_MASK << 56;
     private static final long BLACK_CASTLE_Q_ATTACKER_MASK = WHITE_CASTLE_Q_ATTACKER_MASK << 56;
     private static final long BLACK_CASTLE_Q_BLOCKER_MASK = WHITE_CASTLE_Q_BLOCKER_MASK << 56;
     @Special // Probably also the most bloated one
-    private boolean doCastle(int side, boolean shouldAttempt) {
-        if((this.castle & side) == 0) return false;
+    private boolean doCastle(int side) {
+        if((layout.castle & this.castleRight(side)) == 0) return false;
         long enemyAttackMask = enemyBoard.getAttackMask();
         if(this.color == WHITE) {
             if(side == CASTLE_K_MASK) {
-                if((WHITE_CASTLE_K_ATTACKER_MASK & ~enemyAttackMask) == 0 || this.inCheck()) return false; // bit cleared; square was attacked (or in check)
+                if((WHITE_CASTLE_K_ATTACKER_MASK & enemyAttackMask) != 0 || this.inCheck()) return false; // square was attacked (or in check)
                 if((WHITE_CASTLE_K_BLOCKER_MASK & this.getBlockers()) != 0) return false; // has blockers
-                if(!shouldAttempt) return true;
-                this.king = this.king << 2;
-                this.clear(ROOK, K_PRESERVE_MASK);
-                this.set(ROOK, this.king >>> 1);
             } else {
-                if((WHITE_CASTLE_Q_ATTACKER_MASK & ~enemyAttackMask) == 0 || this.inCheck()) return false; // bit cleared; square was attacked (or in check)
+                if((WHITE_CASTLE_Q_ATTACKER_MASK & enemyAttackMask) != 0 || this.inCheck()) return false; // square was attacked (or in check)
                 if((WHITE_CASTLE_Q_BLOCKER_MASK & this.getBlockers()) != 0) return false; // has blockers
-                if(!shouldAttempt) return true;
-                this.king = this.king >>> 2;
-                this.clear(ROOK, Q_PRESERVE_MASK);
-                this.set(ROOK, this.king << 1);
             }
         } else {
             if(side == CASTLE_K_MASK) {
-                if((BLACK_CASTLE_K_ATTACKER_MASK & ~enemyAttackMask) == 0 || this.inCheck()) return false; // bit cleared; square was attacked (or in check)
+                if((BLACK_CASTLE_K_ATTACKER_MASK & enemyAttackMask) != 0 || this.inCheck()) return false; // square was attacked (or in check)
                 if((BLACK_CASTLE_K_BLOCKER_MASK & this.getBlockers()) != 0) return false; // has blockers
-                if(!shouldAttempt) return true;
-                this.king = this.king << 2;
-                this.clear(ROOK, BLACK_K_PRESERVE_MASK);
-                this.set(ROOK, this.king >>> 1);
             } else {
-                if((BLACK_CASTLE_Q_ATTACKER_MASK & ~enemyAttackMask) == 0 || this.inCheck()) return false; // bit cleared; square was attacked (or in check)
+                if((BLACK_CASTLE_Q_ATTACKER_MASK & enemyAttackMask) != 0 || this.inCheck()) return false; // square was attacked (or in check)
                 if((BLACK_CASTLE_Q_BLOCKER_MASK & this.getBlockers()) != 0) return false; // has blockers
-                if(!shouldAttempt) return true;
-                this.king = this.king >>> 2;
-                this.clear(ROOK, BLACK_Q_PRESERVE_MASK);
-                this.set(ROOK, this.king << 1);
             }
         }
-        this.castle = 0; // castled
         return true;
     }
 
+    /**
+     * Maps the given castle side to the castle right of this color
+     * @param side {@link BoardMap#CASTLE_K_MASK}, {@link BoardMap#CASTLE_Q_MASK} or both
+     * @return the castle rights in the shared layout
+     */
+    private int castleRight(int side) {
+        int right = 0;
+        if((side & CASTLE_K_MASK) != 0) right |= color == WHITE ? WHITE_CASTLE_KING_SIDE : BLACK_CASTLE_KING_SIDE;
+        if((side & CASTLE_Q_MASK) != 0) right |= color == WHITE ? WHITE_CASTLE_QUEEN_SIDE : BLACK_CASTLE_QUEEN_SIDE;
+        return right;
+    }
+
     /**
      * Returns whether the current king gets cleared with the enemy
      * attack mask
      */
     public boolean inCheck() {
-        return ((king & ~enemyBoard.getAttackMask()) == 0);
+        return ((this.board(KING) & ~enemyBoard.getAttackMask()) == 0);
     }
 
     public CheckMethod getCheckMethod() {
@@ -808,47 +1540,14 @@ public class BoardMap implements Cloneable {
     }
 
     /**
-     * Gets all the current squares this board can attack
+     * Gets all the current squares this board can attack, including
+     * squares holding its own pieces.
      * @return the attack mask
+     * @apiNote the mask is cached on the shared layout, and only recomputed
+     * after a change that could have affected it.
      */
     private long getAttackMask() {
-        long ll = 0L;
-        // total blockers
-        long blockers = this.getBlockers();
-        // self pieces to be excluded from capture piece set
-        long captureClearMask = this.getSelfBlocker();
-        for(int i = 0; i < 64; i++) {
-            int piece = this.getSelfPieceAt(i, false);
-            long pieceAttacks;
-            if(Piece.isSlidingPiece(piece)) {
-                pieceAttacks = Bits.getRayAttackMagic(blockers, i, piece) & ~captureClearMask;
-            } else {
-                pieceAttacks = AttackTable.getMaskAt(piece, i);
-            }
-            ll |= pieceAttacks;
-        }
-        return ll;
-    }
-
-    /**
-     * Gets all the current squares this side can reach, including
-     * its own pieces.
-     * @return the ray mask
-     */
-    private long getAttackRay() {
-        long ll = 0L;
-        // total blockers
-        long blockers = this.getBlockers();
-        // self pieces to be excluded from capture piece set
-        for(int i = 0; i < 64; i++) {
-            int piece = this.getSelfPieceAt(i, false);
-            if(Piece.isSlidingPiece(piece)) {
-                ll |= Bits.getRayAttackMagic(blockers, i, piece);
-            } else {
-                ll |= AttackTable.getMaskAt(piece, i);
-            }
-        }
-        return ll;
+        return layout.attacks(BoardLayout.side(color));
     }
 
     /**
@@ -859,12 +1558,7 @@ public class BoardMap implements Cloneable {
     private void clear(int srcPiece, long mask) {
         switch (srcPiece) {
             case NONE -> {} // no-op clearing nothing
-            case PAWN -> pawn &= ~mask;
-            case BISHOP -> bishop &= ~mask;
-            case KNIGHT -> knight &= ~mask;
-            case ROOK -> rook &= ~mask;
-            case QUEEN -> queen &= ~mask;
-            case KING -> king &= ~mask;
+            case PAWN, BISHOP, KNIGHT, ROOK, QUEEN, KING -> layout.clear(color | srcPiece, mask);
             default -> {} // throw new SystemError(String.format("unexpected clear call with piece type %d (%s), mask: %s", srcPiece, Long.toBinaryString(mask)));
         }
     }
@@ -877,16 +1571,20 @@ public class BoardMap implements Cloneable {
     private void set(int srcPiece, long mask) {
         switch (srcPiece) {
             case NONE -> {} // no-op
-            case PAWN -> pawn |= mask;
-            case BISHOP -> bishop |= mask;
-            case KNIGHT -> knight |= mask;
-            case ROOK -> rook |= mask;
-            case QUEEN -> queen |= mask;
-            case KING -> king |= mask;
+            case PAWN, BISHOP, KNIGHT, ROOK, QUEEN, KING -> layout.set(color | srcPiece, mask);
             default -> {} // throw new SystemError(String.format("unexpected retain call with piece type %d, mask: %s", srcPiece, Long.toBinaryString(mask)));
         }
     }
 
+    /**
+     * Gets the bitboard of the given piece type of this side
+     * @param type the piece type, color excluded
+     * @return the bitboard
+     */
+    private long board(int type) {
+        return layout.get(color | type);
+    }
+
     private long mergePieceMask() {
         long ll = 0;
         for (BoardItr it = this.itr(); it.hasNext(); ) {
@@ -911,20 +1609,25 @@ public class BoardMap implements Cloneable {
         long blackQueen = QUEEN_MASK << 56;
         long blackKing = KING_MASK << 56;
 
-        BoardMap white = new BoardMap( PAWN_MASK, BISHOP_MASK, KNIGHT_MASK, ROOK_MASK, QUEEN_MASK, KING_MASK, WHITE);
-        BoardMap black = new BoardMap(blackPawns, blackBishop, blackKnight, blackRook, blackQueen, blackKing, BLACK);
-        white.enemyBoard = black;
-        black.enemyBoard = white;
-        BoardInfo sharedBoardInfo = new BoardInfo();
-        white.info = sharedBoardInfo;
-        black.info = sharedBoardInfo;
-        return white;
-    }
-
-    // Translates the given code to the event
-    private static MovementEvent translate(int code) {
-        if((code & ~PIECE_MASK) == 0) return null;
-        return MovementEvent.getTranslationCode(code);
+        BoardLayout layout = new BoardLayout();
+        layout.set(WHITE | PAWN, PAWN_MASK);
+        layout.set(WHITE | BISHOP, BISHOP_MASK);
+        layout.set(WHITE | KNIGHT, KNIGHT_MASK);
+        layout.set(WHITE | ROOK, ROOK_MASK);
+        layout.set(WHITE | QUEEN, QUEEN_MASK);
+        layout.set(WHITE | KING, KING_MASK);
+        layout.set(BLACK | PAWN, blackPawns);
+        layout.set(BLACK | BISHOP, blackBishop);
+        layout.set(BLACK | KNIGHT, blackKnight);
+        layout.set(BLACK | ROOK, blackRook);
+        layout.set(BLACK | QUEEN, blackQueen);
+        layout.set(BLACK | KING, blackKing);
+        layout.castle = WHITE_CASTLE_MASK | BLACK_CASTLE_MASK;
+        BoardInfo info = new BoardInfo();
+        layout.hash = Zobrist.hash(layout, info);
+        BoardMap boardMap = BoardMap.link(layout, info);
+        boardMap.publishSnapshot();
+        return boardMap;
     }
 
     /**
@@ -938,11 +1641,6 @@ public class BoardMap implements Cloneable {
         return 1L << location;
     }
 
-    // Retrieves the mask used for FEN
-    private static long getFENMask(int location) {
-        return Long.MIN_VALUE >>> location;
-    }
-
     /**
      * Retrieves a bitmask with the specified position turned on.
      * This shifts from the smallest bit, whereas {@link BoardMap#getMask(int)}
@@ -956,12 +1654,12 @@ public class BoardMap implements Cloneable {
 
     @Override
     public String toString() {
-        String pawn = String.format("%64s", Long.toBinaryString(this.pawn)).replace(" ", "0");
-        String knight = String.format("%64s", Long.toBinaryString(this.knight)).replace(" ", "0");
-        String bishop = String.format("%64s", Long.toBinaryString(this.bishop)).replace(" ", "0");
-        String rook = String.format("%64s", Long.toBinaryString(this.rook)).replace(" ", "0");
-        String queen = String.format("%64s", Long.toBinaryString(this.queen)).replace(" ", "0");
-        String king = String.format("%64s", Long.toBinaryString(this.king)).replace(" ", "0");
+        String pawn = String.format("%64s", Long.toBinaryString(this.board(PAWN))).replace(" ", "0");
+        String knight = String.format("%64s", Long.toBinaryString(this.board(KNIGHT))).replace(" ", "0");
+        String bishop = String.format("%64s", Long.toBinaryString(this.board(BISHOP))).replace(" ", "0");
+        String rook = String.format("%64s", Long.toBinaryString(this.board(ROOK))).replace(" ", "0");
+        String queen = String.format("%64s", Long.toBinaryString(this.board(QUEEN))).replace(" ", "0");
+        String king = String.format("%64s", Long.toBinaryString(this.board(KING))).replace(" ", "0");
         return String.format("""
                 Pawn  :%s
                 Knight:%s
@@ -971,7 +1669,7 @@ public class BoardMap implements Cloneable {
                 King  :%s
                 Board Color: %s; Castle flag: %s
                 Board Info: %s
-                """, pawn, knight, bishop, rook, queen, king, this.color, Integer.toHexString(this.castle), this.info);
+                """, pawn, knight, bishop, rook, queen, king, this.color, Integer.toHexString(layout.castle), this.info);
     }
 
     public class BoardItr implements Iterator<Long> {
@@ -997,12 +1695,12 @@ public class BoardMap implements Cloneable {
 
         public long nextLong() {
             return switch (cursor++) {
-                case 0 -> pawn;
-                case 1 -> bishop;
-                case 2 -> knight;
-                case 3 -> rook;
-                case 4 -> queen;
-                case 5 -> king;
+                case 0 -> board(PAWN);
+                case 1 -> board(BISHOP);
+                case 2 -> board(KNIGHT);
+                case 3 -> board(ROOK);
+                case 4 -> board(QUEEN);
+                case 5 -> board(KING);
                 default -> throw new RuntimeException(STR."internal exception: unexpected cursor reached: \{cursor}");
             };
         }
@@ -0,0 +1,133 @@
+package io.github.rainvaporeon.chess.fish.game.utils.board;
+
+import io.github.rainvaporeon.chess.fish.game.utils.EndType;
+import io.github.rainvaporeon.chess.fish.game.utils.GameState;
+import io.github.rainvaporeon.chess.fish.game.utils.MoveGenerator;
+import io.github.rainvaporeon.chess.fish.game.utils.game.Move;
+import com.spiritlight.fishutils.collections.Pair;
+
+import java.util.List;
+
+import static io.github.rainvaporeon.chess.fish.game.Piece.NONE;
+import static io.github.rainvaporeon.chess.fish.game.utils.GameConstants.WHITE_TURN;
+
+/**
+ * A read-only view of a {@link BoardMap} at a given point in time, safe
+ * to query from any amount of threads without locking.
+ * <p>
+ * Taking a snapshot only copies the {@link Position} of the board and
+ * counts its repetitions, leaving the undo stack and the history behind.
+ * The board answering move and state queries is rebuilt from the position
+ * on first use, with every lazily computed value already filled in, so
+ * queries only ever read from it.
+ * @see BoardMap#getSnapshot()
+ */
+public final class BoardSnapshot {
+    private final Position position;
+    // the history is not copied, so a repetition draw is decided when the snapshot is taken
+    private final Pair<GameState, EndType> repetition;
+    // Racy single-check: a board is only published once warmed, a duplicate build is harmless
+    private volatile BoardMap board;
+    // Racy single-check: strings are immutable, so a duplicate computation is harmless
+    private String fen;
+
+    private BoardSnapshot(Position position, Pair<GameState, EndType> repetition) {
+        this.position = position;
+        this.repetition = repetition;
+    }
+
+    /**
+     * Takes a snapshot of the board. This must be called by the thread owning the board.
+     * @param live the board
+     * @return the snapshot
+     */
+    static BoardSnapshot of(BoardMap live) {
+        Position position = live.toPosition();
+        boolean repeated = position.getHalfMove() < 100 && live.getRepetitions() >= 2;
+        return new BoardSnapshot(position, repeated ? Pair.of(GameState.GAME_END, EndType.DRAW_REPETITION) : null);
+    }
+
+    private BoardMap board() {
+        BoardMap board = this.board;
+        if(board == null) {
+            board = BoardMap.load(position);
+            board.warm();
+            this.board = board;
+        }
+        return board;
+    }
+
+    public int getPieceAt(int square) {
+        if(square < 0 || square >= 64) return NONE;
+        return position.getPieceAt(square);
+    }
+
+    public boolean canMove(int srcPos, int destPos) {
+        return this.board().canMove(srcPos, destPos);
+    }
+
+    public boolean canMove(int srcPos, int destPos, boolean respectTurn) {
+        return this.board().canMove(srcPos, destPos, respectTurn);
+    }
+
+    /**
+     * Gets the valid moves of the piece on the square
+     * @param square the square, from 0 to 63
+     * @return the moves, respecting the turn to play
+     */
+    public List<Move> getValidMoves(int square) {
+        return MoveGenerator.create(this.board()).getValidMovesFor(square);
+    }
+
+    /**
+     * Gets the valid moves of the side to play
+     * @return the moves
+     */
+    public List<Move> getAllValidMoves() {
+        return MoveGenerator.create(this.board()).getAllValidMoves();
+    }
+
+    public int getTurn() {
+        return position.getTurn();
+    }
+
+    public int enPassantSquare() {
+        return position.getEnPassantSquare();
+    }
+
+    public long getHash() {
+        return position.getHash();
+    }
+
+    /**
+     * Returns whether the side to play is in check
+     */
+    public boolean inCheck() {
+        BoardMap board = this.board();
+        return board.getTurn() == WHITE_TURN ? board.inCheck() : board.getEnemyBoard().inCheck();
+    }
+
+    public GameState getState() {
+        return this.board().getState();
+    }
+
+    public Pair<GameState, EndType> getGameState() {
+        if(repetition != null) return repetition;
+        return this.board().getGameState();
+    }
+
+    public String toFENString() {
+        String fen = this.fen;
+        if(fen == null) this.fen = fen = this.board().toFENString();
+        return fen;
+    }
+
+    public Position toPosition() {
+        return position;
+    }
+
+    @Override
+    public String toString() {
+        return this.toFENString();
+    }
+}
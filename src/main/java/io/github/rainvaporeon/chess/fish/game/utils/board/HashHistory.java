@@ -0,0 +1,65 @@
+package io.github.rainvaporeon.chess.fish.game.utils.board;
+
+/**
+ * A ring buffer holding the Zobrist keys of the positions reached
+ * earlier in a game, most recent last.
+ * <p>
+ * Only positions since the last irreversible move can repeat, so
+ * lookups are bounded by the half move clock and never need more than
+ * the last hundred or so entries, which the buffer always retains.
+ */
+final class HashHistory {
+    // A power of two comfortably above the 100 plies of the 50-move rule
+    private static final int CAPACITY = 256;
+    private static final int MASK = CAPACITY - 1;
+
+    private final long[] keys;
+    // The amount of keys pushed, and the oldest of them not yet overwritten
+    private int size;
+    private int floor;
+
+    HashHistory() {
+        this.keys = new long[CAPACITY];
+    }
+
+    private HashHistory(HashHistory other) {
+        this.keys = other.keys.clone();
+        this.size = other.size;
+        this.floor = other.floor;
+    }
+
+    void push(long key) {
+        keys[size & MASK] = key;
+        size++;
+        floor = Math.max(floor, size - CAPACITY);
+    }
+
+    void pop() {
+        size--;
+    }
+
+    void clear() {
+        size = 0;
+        floor = 0;
+    }
+
+    /**
+     * Counts the earlier occurrences of the key. Only every second ply
+     * is checked, as the side to move has to match.
+     * @param key the key of the current position
+     * @param window the amount of plies to look back, usually the half move clock
+     * @return the amount of times the position occurred before
+     */
+    int repetitions(long key, int window) {
+        int count = 0;
+        // going back and forth takes at least four plies
+        for(int ply = 4; ply <= window && size - ply >= floor; ply += 2) {
+            if(keys[(size - ply) & MASK] == key) count++;
+        }
+        return count;
+    }
+
+    HashHistory copy() {
+        return new HashHistory(this);
+    }
+}
@@ -0,0 +1,209 @@
+package io.github.rainvaporeon.chess.fish.game.utils.board;
+
+import io.github.rainvaporeon.chess.fish.game.Piece;
+import io.github.rainvaporeon.chess.fish.game.utils.game.Move;
+import io.github.rainvaporeon.chess.fish.game.utils.game.PackedMove;
+
+import java.util.Arrays;
+
+import static io.github.rainvaporeon.chess.fish.game.Piece.*;
+import static io.github.rainvaporeon.chess.fish.game.utils.GameConstants.*;
+
+/**
+ * An immutable position, holding the twelve piece bitboards and a single
+ * packed state word. Moves are made with {@link Position#withMove(int)},
+ * which returns a new position and leaves this one untouched, so positions
+ * may be shared freely across threads.
+ * <p>
+ * The state word is laid out as follows, from the lowest bit:
+ * <pre>
+ * turn (1) | castle rights (4) | en passant square (7) | half move (16) | full move (32)
+ * </pre>
+ * An en passant square of 0 denotes that there is none.
+ * @see BoardMap#toPosition()
+ */
+public final class Position {
+    private static final int CASTLE_SHIFT = 1, EN_PASSANT_SHIFT = 5, HALF_MOVE_SHIFT = 12, FULL_MOVE_SHIFT = 28;
+
+    // Indexed by BoardLayout#index(int)
+    private final long[] pieces;
+    private final long state;
+    private final long hash;
+
+    Position(long[] pieces, int turn, int castle, int enPassant, int halfMove, int fullMove, long hash) {
+        this(pieces, pack(turn, castle, enPassant, halfMove, fullMove), hash);
+    }
+
+    private Position(long[] pieces, long state, long hash) {
+        this.pieces = pieces;
+        this.state = state;
+        this.hash = hash;
+    }
+
+    private static long pack(int turn, int castle, int enPassant, int halfMove, int fullMove) {
+        return (turn & TURN_MASK)
+                | (long) (castle & 0xF) << CASTLE_SHIFT
+                | (long) (Math.max(enPassant, 0) & 0x7F) << EN_PASSANT_SHIFT
+                | (long) (halfMove & 0xFFFF) << HALF_MOVE_SHIFT
+                | (fullMove & 0xFFFFFFFFL) << FULL_MOVE_SHIFT;
+    }
+
+    /**
+     * Encodes the move for this position, see {@link BoardMap#encode(Move, int)}
+     * @param move the move
+     * @param promotion the piece type to promote to, ignored if the move is not a promotion
+     * @return the packed move
+     */
+    public int encode(Move move, int promotion) {
+        int src = move.sourcePos();
+        int dest = move.destPos();
+        int piece = this.getPieceAt(src);
+        if(piece == NONE) throw new IllegalArgumentException(STR."no piece to move at \{BoardHelper.getPositionString(src)}");
+        int type = promotion & PIECE_MASK;
+        if(type < KNIGHT || type > QUEEN) throw new IllegalArgumentException(STR."cannot promote to \{Piece.asString(promotion)}");
+        return BoardMap.encode(src, dest, type, piece, this.getPieceAt(dest), this.getEnPassantSquare());
+    }
+
+    /**
+     * Makes the move, returning the resulting position. The move is not
+     * validated, and is made for the side owning the moved piece.
+     * @param move the move, as packed by {@link Position#encode(Move, int)}. The flags
+     *             are trusted, see {@link PackedMove}.
+     * @return the new position
+     */
+    public Position withMove(int move) {
+        int src = PackedMove.from(move);
+        int dest = PackedMove.to(move);
+        int flags = PackedMove.flags(move);
+        int piece = this.getPieceAt(src);
+        if(piece == NONE) throw new IllegalArgumentException(STR."no piece to move at \{BoardHelper.getPositionString(src)}");
+        int mover = Piece.color(piece);
+        int captured = NONE;
+
+        long[] next = pieces.clone();
+        // the en passant key depends on the pawns, so it is taken out before they move
+        long hash = this.hash ^ Zobrist.enPassant(this.getEnPassantSquare(), pieces, this.getTurn());
+        switch (flags) {
+            case PackedMove.KING_CASTLE, PackedMove.QUEEN_CASTLE -> {
+                int rank = src & ~7;
+                boolean kingSide = flags == PackedMove.KING_CASTLE;
+                int rook = mover | ROOK;
+                hash ^= toggle(next, piece, src) ^ toggle(next, piece, dest);
+                hash ^= toggle(next, rook, rank + (kingSide ? 7 : 0)) ^ toggle(next, rook, rank + (kingSide ? 5 : 3));
+            }
+            case PackedMove.EN_PASSANT -> {
+                captured = (mover ^ COLOR_MASK) | PAWN;
+                hash ^= toggle(next, captured, (src & ~7) | (dest & 7));
+                hash ^= toggle(next, piece, src) ^ toggle(next, piece, dest);
+            }
+            default -> {
+                if(PackedMove.isCapture(move)) {
+                    captured = this.getPieceAt(dest);
+                    hash ^= toggle(next, captured, dest);
+                }
+                int placed = PackedMove.isPromotion(move) ? mover | PackedMove.promotion(move) : piece;
+                hash ^= toggle(next, piece, src) ^ toggle(next, placed, dest);
+            }
+        }
+
+        int castle = this.getCastle();
+        int nextCastle = castle & ~(BoardMap.CASTLE_REVOKE[src] | BoardMap.CASTLE_REVOKE[dest]);
+        int nextEnPassant = flags == PackedMove.DOUBLE_PUSH ? (src + dest) >>> 1 : 0;
+        hash ^= Zobrist.castle(castle) ^ Zobrist.castle(nextCastle);
+        hash ^= Zobrist.enPassant(nextEnPassant, next, this.getTurn() ^ TURN_MASK);
+        hash ^= Zobrist.turn(BLACK_TURN);
+        long state = pack(
+                this.getTurn() ^ TURN_MASK,
+                nextCastle,
+                nextEnPassant,
+                (piece & PIECE_MASK) == PAWN || captured != NONE ? 0 : this.getHalfMove() + 1,
+                mover == BLACK ? this.getFullMove() + 1 : this.getFullMove());
+        return new Position(next, state, hash);
+    }
+
+    // Flips the piece on the square, returning the key to apply
+    private static long toggle(long[] pieces, int piece, int square) {
+        pieces[BoardLayout.index(piece)] ^= 1L << square;
+        return Zobrist.piece(piece, square);
+    }
+
+    /**
+     * Gets the bitboard of the given piece
+     * @param piece the piece, color included
+     * @return the bitboard
+     */
+    public long get(int piece) {
+        return pieces[BoardLayout.index(piece)];
+    }
+
+    /**
+     * Gets the piece standing on the given square
+     * @param square the square, from 0 to 63
+     * @return the piece, color included, or {@link Piece#NONE}
+     */
+    public int getPieceAt(int square) {
+        long mask = 1L << square;
+        for(int i = 0; i < 12; i++) {
+            if((pieces[i] & mask) != 0) return (i < 6 ? WHITE : BLACK) | (i % 6 + 1);
+        }
+        return NONE;
+    }
+
+    public int getTurn() {
+        return (int) (state & TURN_MASK);
+    }
+
+    public int getCastle() {
+        return (int) (state >>> CASTLE_SHIFT & 0xF);
+    }
+
+    public int getEnPassantSquare() {
+        return (int) (state >>> EN_PASSANT_SHIFT & 0x7F);
+    }
+
+    public int getHalfMove() {
+        return (int) (state >>> HALF_MOVE_SHIFT & 0xFFFF);
+    }
+
+    public int getFullMove() {
+        return (int) (state >>> FULL_MOVE_SHIFT);
+    }
+
+    /**
+     * Gets the Zobrist key of this position, identical to the key
+     * of the equivalent {@link BoardMap}
+     * @return the key
+     */
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * Converts this position to a mutable board
+     * @return the white board
+     */
+    public BoardMap toBoardMap() {
+        return BoardMap.fromPosition(this);
+    }
+
+    long[] pieces() {
+        return pieces;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) return true;
+        if(!(o instanceof Position other)) return false;
+        return hash == other.hash && state == other.state && Arrays.equals(pieces, other.pieces);
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(hash);
+    }
+
+    @Override
+    public String toString() {
+        return BoardMap.load(this).toFENString();
+    }
+}
@@ -0,0 +1,131 @@
+package io.github.rainvaporeon.chess.fish.game.utils.board;
+
+import java.util.SplittableRandom;
+
+import static io.github.rainvaporeon.chess.fish.game.Piece.*;
+import static io.github.rainvaporeon.chess.fish.game.utils.GameConstants.*;
+
+/**
+ * Zobrist keys used to hash a position into a 64-bit value.
+ * <p>
+ * The key of a position is the XOR of one key per piece on its square,
+ * one key for the castle rights, one key for the file of the en passant
+ * square (if a pawn of the side to play stands ready to capture onto it)
+ * and one key if it is black to play. An en passant square no pawn can
+ * capture onto does not change the position, so it is left out of the key
+ * and repetitions are found regardless. As XOR is its own
+ * inverse, the key can be updated incrementally by toggling only the
+ * parts a move changes.
+ * @apiNote the keys are generated from a fixed seed, so hashes stay
+ * identical across runs and may be persisted.
+ */
+public final class Zobrist {
+    private static final long SEED = 0x46495348L; // FISH
+
+    private static final long[] PIECES = new long[12 * 64];
+    private static final long[] CASTLE = new long[16];
+    private static final long[] EN_PASSANT = new long[8];
+    private static final long BLACK_TO_MOVE;
+
+    private static boolean verify = false;
+
+    static {
+        SplittableRandom random = new SplittableRandom(SEED);
+        for(int i = 0; i < PIECES.length; i++) PIECES[i] = random.nextLong();
+        for(int i = 0; i < CASTLE.length; i++) CASTLE[i] = random.nextLong();
+        for(int i = 0; i < EN_PASSANT.length; i++) EN_PASSANT[i] = random.nextLong();
+        BLACK_TO_MOVE = random.nextLong();
+    }
+
+    private Zobrist() {}
+
+    /**
+     * Gets the key of a piece standing on the square
+     * @param piece the piece, color included
+     * @param square the square, from 0 to 63
+     * @return the key
+     */
+    public static long piece(int piece, int square) {
+        return PIECES[BoardLayout.index(piece) * 64 + square];
+    }
+
+    /**
+     * Gets the key of the castle rights
+     * @param rights the castle rights, as described in {@link io.github.rainvaporeon.chess.fish.game.utils.GameConstants}
+     * @return the key
+     */
+    public static long castle(int rights) {
+        return CASTLE[rights & (WHITE_CASTLE_MASK | BLACK_CASTLE_MASK)];
+    }
+
+    /**
+     * Gets the key of the en passant square
+     * @param square the en passant square, 0 or less if there is none
+     * @return the key, or 0 if there is no en passant square
+     */
+    public static long enPassant(int square) {
+        if(square <= 0 || square >= 64) return 0;
+        return EN_PASSANT[square & 7];
+    }
+
+    /**
+     * Gets the key of the en passant square as it counts toward the key of a
+     * position, that is, only if a pawn of the side to play could capture onto it
+     * @param square the en passant square, 0 or less if there is none
+     * @param pieces the bitboards of the position, see {@link BoardLayout#index(int)}
+     * @param turn the turn to play
+     * @return the key, or 0 if there is no en passant square or no pawn to capture onto it
+     */
+    static long enPassant(int square, long[] pieces, int turn) {
+        if(square <= 0 || square >= 64) return 0;
+        int capturer = turn == WHITE_TURN ? WHITE : BLACK;
+        long pawns = pieces[BoardLayout.index(capturer | PAWN)];
+        // the capturing pawns stand where a pawn of the other side on the square would attack
+        if((AttackTable.getPawnAttacks(capturer ^ COLOR_MASK, 1L << square) & pawns) == 0) return 0;
+        return EN_PASSANT[square & 7];
+    }
+
+    /**
+     * Gets the key of the turn to play
+     * @param turn the turn
+     * @return the key, 0 if it is white to play
+     */
+    public static long turn(int turn) {
+        return turn == BLACK_TURN ? BLACK_TO_MOVE : 0;
+    }
+
+    /**
+     * Computes the key of the position from scratch
+     * @param layout the layout
+     * @param info the board info
+     * @return the key
+     */
+    static long hash(BoardLayout layout, BoardInfo info) {
+        long hash = 0;
+        for(int i = 0; i < 12; i++) {
+            long board = layout.pieces[i];
+            while(board != 0) {
+                hash ^= PIECES[i * 64 + Long.numberOfTrailingZeros(board)];
+                board &= board - 1;
+            }
+        }
+        hash ^= castle(layout.castle);
+        hash ^= enPassant(info.enPassantSquare, layout.pieces, info.turn);
+        hash ^= turn(info.turn);
+        return hash;
+    }
+
+    /**
+     * Sets whether incremental keys should be cross-checked against
+     * a key computed from scratch after every move. This is expensive
+     * and only meant for debugging.
+     * @param verify whether to verify the keys
+     */
+    public static void setVerify(boolean verify) {
+        Zobrist.verify = verify;
+    }
+
+    public static boolean isVerify() {
+        return verify;
+    }
+}
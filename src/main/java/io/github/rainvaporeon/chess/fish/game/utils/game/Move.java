@@ -58,6 +58,27 @@ public record Move(int from, int to) {
         return of(to, from);
     }
 
+    /**
+     * Packs this move into an int, with the source in the lowest
+     * six bits and the destination in the next six bits. The move
+     * carries no flags; use {@link io.github.rainvaporeon.chess.fish.game.utils.board.BoardMap#encode(Move, int)}
+     * to pack it for a given position.
+     * @return the packed move
+     * @see PackedMove
+     */
+    public int pack() {
+        return from | to << 6;
+    }
+
+    /**
+     * Unpacks the move from an int, see {@link Move#pack()}
+     * @param move the packed move
+     * @return the move
+     */
+    public static Move unpack(int move) {
+        return of(move & 0x3F, move >>> 6 & 0x3F);
+    }
+
     /**
      * Converts the string to a move. Note that
      * the converted position does <b>not</b> correspond
@@ -0,0 +1,104 @@
+package io.github.rainvaporeon.chess.fish.game.utils.game;
+
+/**
+ * Helpers for the result of a move packed into an int, returned by
+ * {@link io.github.rainvaporeon.chess.fish.game.utils.board.BoardMap#tryUpdate(Move)}
+ * so that validating a move does not allocate; unlike the event returning
+ * {@link io.github.rainvaporeon.chess.fish.game.utils.board.BoardMap#update(Move)},
+ * it publishes no snapshot unless asked to. The word is laid out as
+ * follows, from the lowest bit:
+ * <pre>
+ * status (8) | moving piece (8) | captured piece (8)
+ * </pre>
+ * Pieces are only set if the move was made. A {@link MovementEvent} may be
+ * created from the word with {@link MoveStatus#toEvent(int, Move)} when needed.
+ */
+public final class MoveStatus {
+    /**
+     * The move was made
+     */
+    public static final int OK = 0;
+    /**
+     * See {@link MovementEvent#ILLEGAL}
+     */
+    public static final int ILLEGAL = 1;
+    /**
+     * See {@link MovementEvent#CAPTURING_SAME}
+     */
+    public static final int CAPTURING_SAME = 2;
+    /**
+     * See {@link MovementEvent#REVEALS_CHECK}
+     */
+    public static final int REVEALS_CHECK = 3;
+    /**
+     * See {@link MovementEvent#WHITE_TO_PLAY}
+     */
+    public static final int WHITE_TO_PLAY = 4;
+    /**
+     * See {@link MovementEvent#BLACK_TO_PLAY}
+     */
+    public static final int BLACK_TO_PLAY = 5;
+    /**
+     * See {@link MovementEvent#UNRESOLVED_CHECK}
+     */
+    public static final int UNRESOLVED_CHECK = 6;
+
+    private MoveStatus() {}
+
+    public static int of(int status, int movingPiece, int capturedPiece) {
+        return status | (movingPiece & 0xFF) << 8 | (capturedPiece & 0xFF) << 16;
+    }
+
+    public static int status(int word) {
+        return word & 0xFF;
+    }
+
+    public static int movingPiece(int word) {
+        return word >>> 8 & 0xFF;
+    }
+
+    public static int capturedPiece(int word) {
+        return word >>> 16 & 0xFF;
+    }
+
+    public static boolean isSuccess(int word) {
+        return status(word) == OK;
+    }
+
+    /**
+     * Maps the error code of a {@link MovementEvent} to a status
+     * @param code the code, see {@link MovementEvent#code()}
+     * @return the status, {@link MoveStatus#ILLEGAL} if the code is unknown
+     */
+    public static int fromCode(int code) {
+        if(code == MovementEvent.CAPTURING_SAME.code()) return CAPTURING_SAME;
+        if(code == MovementEvent.REVEALS_CHECK.code()) return REVEALS_CHECK;
+        if(code == MovementEvent.WHITE_TO_PLAY.code()) return WHITE_TO_PLAY;
+        if(code == MovementEvent.BLACK_TO_PLAY.code()) return BLACK_TO_PLAY;
+        if(code == MovementEvent.UNRESOLVED_CHECK.code()) return UNRESOLVED_CHECK;
+        return ILLEGAL;
+    }
+
+    /**
+     * Creates the event matching the result
+     * @param word the result
+     * @param move the move the result is of
+     * @return a new event if the move was made, otherwise the shared error event
+     */
+    public static MovementEvent toEvent(int word, Move move) {
+        return switch (status(word)) {
+            case OK -> new MovementEvent(movingPiece(word), capturedPiece(word), move);
+            case CAPTURING_SAME -> MovementEvent.CAPTURING_SAME;
+            case REVEALS_CHECK -> MovementEvent.REVEALS_CHECK;
+            case WHITE_TO_PLAY -> MovementEvent.WHITE_TO_PLAY;
+            case BLACK_TO_PLAY -> MovementEvent.BLACK_TO_PLAY;
+            case UNRESOLVED_CHECK -> MovementEvent.UNRESOLVED_CHECK;
+            default -> MovementEvent.ILLEGAL;
+        };
+    }
+
+    public static String toString(int word) {
+        if(isSuccess(word)) return STR."MoveStatus[movingPiece=\{movingPiece(word)}, capturedPiece=\{capturedPiece(word)}]";
+        return toEvent(word, null).toString();
+    }
+}
@@ -0,0 +1,121 @@
+package io.github.rainvaporeon.chess.fish.game.utils.game;
+
+import static io.github.rainvaporeon.chess.fish.game.Piece.*;
+
+/**
+ * Helpers for moves packed into the lowest 16 bits of an int, laid out
+ * as follows, from the lowest bit:
+ * <pre>
+ * from (6) | to (6) | flags (4)
+ * </pre>
+ * The flags tell everything a board needs to make the move without
+ * looking at it again:
+ * <pre>
+ * 0  quiet                 8  knight promotion    12 knight promotion capture
+ * 1  double pawn push      9  bishop promotion    13 bishop promotion capture
+ * 2  king side castle      10 rook promotion      14 rook promotion capture
+ * 3  queen side castle     11 queen promotion     15 queen promotion capture
+ * 4  capture
+ * 5  en passant capture
+ * </pre>
+ * Castling moves land on the square the king ends up on. A packed move
+ * with no flags is identical to {@link Move#pack()}.
+ * @see io.github.rainvaporeon.chess.fish.game.utils.board.BoardMap#encode(Move, int)
+ */
+public final class PackedMove {
+    public static final int QUIET = 0;
+    public static final int DOUBLE_PUSH = 1;
+    public static final int KING_CASTLE = 2;
+    public static final int QUEEN_CASTLE = 3;
+    public static final int CAPTURE = 4;
+    public static final int EN_PASSANT = 5;
+    public static final int PROMOTION = 8;
+
+    private static final int FLAG_SHIFT = 12;
+
+    private PackedMove() {}
+
+    public static int of(int from, int to) {
+        return from | to << 6;
+    }
+
+    public static int of(int from, int to, int flags) {
+        return from | to << 6 | flags << FLAG_SHIFT;
+    }
+
+    /**
+     * Packs a promotion
+     * @param from the square from
+     * @param to the square to
+     * @param promotion the piece type to promote to, from knight to queen
+     * @param capture whether a piece is captured on the way
+     * @return the packed move
+     */
+    public static int promotion(int from, int to, int promotion, boolean capture) {
+        return of(from, to, PROMOTION | (capture ? CAPTURE : 0) | (promotion - KNIGHT));
+    }
+
+    public static int from(int move) {
+        return move & 0x3F;
+    }
+
+    public static int to(int move) {
+        return move >>> 6 & 0x3F;
+    }
+
+    public static int flags(int move) {
+        return move >>> FLAG_SHIFT & 0xF;
+    }
+
+    public static boolean isCapture(int move) {
+        return (move >>> FLAG_SHIFT & CAPTURE) != 0;
+    }
+
+    public static boolean isPromotion(int move) {
+        return (move >>> FLAG_SHIFT & PROMOTION) != 0;
+    }
+
+    public static boolean isCastle(int move) {
+        int flags = flags(move);
+        return flags == KING_CASTLE || flags == QUEEN_CASTLE;
+    }
+
+    public static boolean isEnPassant(int move) {
+        return flags(move) == EN_PASSANT;
+    }
+
+    /**
+     * Gets the piece type promoted to
+     * @param move the packed move
+     * @return the piece type, or {@link io.github.rainvaporeon.chess.fish.game.Piece#NONE} if the move is not a promotion
+     */
+    public static int promotion(int move) {
+        return isPromotion(move) ? (move >>> FLAG_SHIFT & 3) + KNIGHT : NONE;
+    }
+
+    /**
+     * Converts the packed move to a move, dropping the flags
+     * @param move the packed move
+     * @return the move
+     */
+    public static Move toMove(int move) {
+        return Move.of(from(move), to(move));
+    }
+
+    /**
+     * Converts the packed move to a string in coordinate notation, such as
+     * {@code e2e4} or {@code e7e8q}
+     * @param move the packed move
+     * @return the string
+     */
+    public static String toString(int move) {
+        String str = STR."\{Move.parseLocation(from(move))}\{Move.parseLocation(to(move))}";
+        return switch (promotion(move)) {
+            case KNIGHT -> STR."\{str}n";
+            case BISHOP -> STR."\{str}b";
+            case ROOK -> STR."\{str}r";
+            case QUEEN -> STR."\{str}q";
+            default -> str;
+        };
+    }
+}
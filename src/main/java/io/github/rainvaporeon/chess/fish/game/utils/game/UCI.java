@@ -0,0 +1,195 @@
+package io.github.rainvaporeon.chess.fish.game.utils.game;
+
+import io.github.rainvaporeon.chess.fish.game.utils.MoveList;
+import io.github.rainvaporeon.chess.fish.game.utils.board.BoardMap;
+
+import static io.github.rainvaporeon.chess.fish.game.Piece.*;
+import static io.github.rainvaporeon.chess.fish.game.utils.GameConstants.WHITE_TURN;
+
+/**
+ * Parses and formats moves in the long algebraic notation of the UCI
+ * protocol, such as {@code e2e4} or {@code e7e8q}, without allocating.
+ * <p>
+ * Parsed moves are packed as described by {@link PackedMove}, but only carry
+ * the promotion, as the other flags depend on the position; see
+ * {@link UCI#play(BoardMap, CharSequence)} to apply moves to a board.
+ * Castling is written as the king moving two files, such as {@code e1g1}.
+ */
+public final class UCI {
+    private static final char[] PROMOTIONS = {0, 0, 'n', 'b', 'r', 'q'};
+
+    private UCI() {}
+
+    /**
+     * Parses a move
+     * @param text the move
+     * @return the packed move, carrying the promotion if any
+     * @throws IllegalArgumentException if the move is malformed
+     */
+    public static int parse(CharSequence text) {
+        return parse(text, 0, text.length());
+    }
+
+    /**
+     * Parses the move in the given range
+     * @param text the text
+     * @param start the first character of the move
+     * @param end the character past the move
+     * @return the packed move, carrying the promotion if any
+     * @throws IllegalArgumentException if the move is malformed
+     */
+    public static int parse(CharSequence text, int start, int end) {
+        int length = end - start;
+        if(length != 4 && length != 5) throw new IllegalArgumentException(STR."malformed move \{text.subSequence(start, end)}");
+        int move = pack(text.charAt(start), text.charAt(start + 1), text.charAt(start + 2), text.charAt(start + 3),
+                length == 5 ? text.charAt(start + 4) : 0);
+        if(move < 0) throw new IllegalArgumentException(STR."malformed move \{text.subSequence(start, end)}");
+        return move;
+    }
+
+    /**
+     * Parses the move in the given range of ASCII bytes
+     * @param bytes the bytes
+     * @param start the first byte of the move
+     * @param end the byte past the move
+     * @return the packed move, carrying the promotion if any
+     * @throws IllegalArgumentException if the move is malformed
+     */
+    public static int parse(byte[] bytes, int start, int end) {
+        int length = end - start;
+        int move = length != 4 && length != 5 ? -1 : pack(bytes[start], bytes[start + 1], bytes[start + 2], bytes[start + 3],
+                length == 5 ? bytes[start + 4] : 0);
+        if(move < 0) throw new IllegalArgumentException(STR."malformed move \{new String(bytes, start, Math.max(length, 0), java.nio.charset.StandardCharsets.US_ASCII)}");
+        return move;
+    }
+
+    // Packs the characters of a move, or returns -1 if they are not one
+    private static int pack(int fromFile, int fromRank, int toFile, int toRank, int promotion) {
+        int from = square(fromFile, fromRank);
+        int to = square(toFile, toRank);
+        if(from < 0 || to < 0) return -1;
+        if(promotion == 0) return PackedMove.of(from, to);
+        int type = switch (promotion | 0x20) { // lower case
+            case 'n' -> KNIGHT;
+            case 'b' -> BISHOP;
+            case 'r' -> ROOK;
+            case 'q' -> QUEEN;
+            default -> NONE;
+        };
+        if(type == NONE) return -1;
+        return PackedMove.promotion(from, to, type, false);
+    }
+
+    private static int square(int file, int rank) {
+        file -= 'a';
+        rank -= '1';
+        if(file < 0 || file >= 8 || rank < 0 || rank >= 8) return -1;
+        return file + rank * 8;
+    }
+
+    /**
+     * Parses the moves separated by whitespace in the given range, appending them to the list
+     * @param text the text
+     * @param start the first character of the moves
+     * @param end the character past the moves
+     * @param list the list
+     * @return the amount of moves in the list
+     * @throws IllegalArgumentException if a move is malformed
+     */
+    public static int parseAll(CharSequence text, int start, int end, MoveList list) {
+        int i = start;
+        while(true) {
+            while(i < end && Character.isWhitespace(text.charAt(i))) i++;
+            if(i == end) return list.size();
+            int tokenStart = i;
+            while(i < end && !Character.isWhitespace(text.charAt(i))) i++;
+            list.add(parse(text, tokenStart, i));
+        }
+    }
+
+    /**
+     * Plays the moves separated by whitespace in order, as in
+     * {@code position startpos moves e2e4 e7e5}. Every move is checked to be
+     * legal for the side to play, and the snapshot of the board is published
+     * once all of them were made.
+     * @param board the board
+     * @param moves the moves
+     * @return the amount of moves played
+     * @throws IllegalArgumentException if a move is malformed or illegal, in
+     * which case the moves before it stay played
+     */
+    public static int play(BoardMap board, CharSequence moves) {
+        MoveList legal = new MoveList();
+        int played = 0;
+        int i = 0;
+        int end = moves.length();
+        try {
+            while(true) {
+                while(i < end && Character.isWhitespace(moves.charAt(i))) i++;
+                if(i == end) return played;
+                int tokenStart = i;
+                while(i < end && !Character.isWhitespace(moves.charAt(i))) i++;
+                int move = parse(moves, tokenStart, i);
+                int from = PackedMove.from(move);
+                int to = PackedMove.to(move);
+                int promotion = PackedMove.promotion(move);
+                int color = board.getTurn() == WHITE_TURN ? WHITE : BLACK;
+                BoardMap side = board.getColor() == color ? board : board.getEnemyBoard();
+                legal.clear();
+                side.generateMoves(legal, 1L << from, 1L << to);
+                // a missing promotion suffix promotes to a queen, as with BoardMap#update(Move)
+                int encoded = (side.getSelfBlocker() & 1L << from) == 0 ? -1 : side.encode(from, to, promotion == NONE ? QUEEN : promotion);
+                if(promotion != NONE && !PackedMove.isPromotion(encoded)) encoded = -1;
+                if(!legal.contains(encoded)) throw new IllegalArgumentException(STR."illegal move \{moves.subSequence(tokenStart, i)} at \{side.toFENString()}");
+                side.makeMove(encoded);
+                played++;
+            }
+        } finally {
+            if(played != 0) board.publishSnapshot();
+        }
+    }
+
+    /**
+     * Appends the move to the builder
+     * @param move the packed move
+     * @param builder the builder
+     * @return the builder
+     */
+    public static StringBuilder format(int move, StringBuilder builder) {
+        int from = PackedMove.from(move);
+        int to = PackedMove.to(move);
+        builder.append((char) ('a' + (from & 7))).append((char) ('1' + (from >>> 3)))
+                .append((char) ('a' + (to & 7))).append((char) ('1' + (to >>> 3)));
+        int promotion = PackedMove.promotion(move);
+        if(promotion != NONE) builder.append(PROMOTIONS[promotion]);
+        return builder;
+    }
+
+    /**
+     * Writes the move as ASCII bytes
+     * @param move the packed move
+     * @param bytes the buffer, with room for five bytes past the offset
+     * @param offset the offset to write at
+     * @return the offset past the move
+     */
+    public static int format(int move, byte[] bytes, int offset) {
+        int from = PackedMove.from(move);
+        int to = PackedMove.to(move);
+        bytes[offset++] = (byte) ('a' + (from & 7));
+        bytes[offset++] = (byte) ('1' + (from >>> 3));
+        bytes[offset++] = (byte) ('a' + (to & 7));
+        bytes[offset++] = (byte) ('1' + (to >>> 3));
+        int promotion = PackedMove.promotion(move);
+        if(promotion != NONE) bytes[offset++] = (byte) PROMOTIONS[promotion];
+        return offset;
+    }
+
+    /**
+     * Formats the move
+     * @param move the packed move
+     * @return the move, such as {@code e7e8q}
+     */
+    public static String toString(int move) {
+        return format(move, new StringBuilder(5)).toString();
+    }
+}
@@ -0,0 +1,397 @@
+package io.github.rainvaporeon.chess.fish.internal.perft;
+
+import io.github.rainvaporeon.chess.fish.game.FEN;
+import io.github.rainvaporeon.chess.fish.game.utils.MoveGenerator;
+import io.github.rainvaporeon.chess.fish.game.utils.MoveList;
+import io.github.rainvaporeon.chess.fish.game.utils.Perft;
+import io.github.rainvaporeon.chess.fish.game.utils.board.BoardMap;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Spreads a deep perft over {@link PerftWorker} processes on this machine.
+ * <p>
+ * The root is expanded to a split depth, and the positions reached are
+ * handed out one at a time to the workers connected over localhost, which
+ * count the rest of the depth below them. Transposed positions are only
+ * counted once. Once no subtree is left to hand out, idle workers count a
+ * copy of the oldest subtree still running elsewhere, so a slow worker does
+ * not hold up the result; whichever copy finishes first is taken. Subtrees
+ * of a worker that disconnects go back to the others, and if no worker is
+ * left the coordinator counts the remainder itself.
+ * <p>
+ * The protocol is line based, the coordinator sending {@code perft <id> <depth> <fen>}
+ * and the worker answering {@code result <id> <nodes> <nanos>} or
+ * {@code error <id> <message>}, until the coordinator sends {@code quit}.
+ */
+public final class PerftCoordinator implements Closeable {
+    static final String JOB = "perft";
+    static final String RESULT = "result";
+    static final String ERROR = "error";
+    static final String QUIT = "quit";
+
+    private final ServerSocket server;
+    private final List<Connection> workers = new CopyOnWriteArrayList<>();
+    private final List<Process> processes = new ArrayList<>();
+    private final AtomicInteger ids = new AtomicInteger();
+
+    private PerftCoordinator(ServerSocket server) {
+        this.server = server;
+    }
+
+    /**
+     * Counts a position over worker processes started for the purpose:
+     * <pre>
+     * java --enable-preview -cp fish.jar io.github.rainvaporeon.chess.fish.internal.perft.PerftCoordinator &lt;depth&gt; &lt;split depth&gt; &lt;workers&gt; [cache megabytes] [fen]
+     * </pre>
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 3) {
+            System.err.println("Usage: PerftCoordinator <depth> <split depth> <workers> [cache megabytes] [fen]");
+            System.exit(1);
+            return;
+        }
+        int workers = Integer.parseInt(args[2]);
+        int cacheMegabytes = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        String fen = args.length > 4 ? String.join(" ", Arrays.copyOfRange(args, 4, args.length)) : FEN.INITIAL_POSITION;
+        try(PerftCoordinator coordinator = PerftCoordinator.create(0)) {
+            coordinator.spawnWorkers(workers, cacheMegabytes);
+            coordinator.awaitWorkers(workers, Duration.ofMinutes(1));
+            coordinator.count(fen, Integer.parseInt(args[0]), Integer.parseInt(args[1]), System.out);
+        }
+    }
+
+    /**
+     * Creates a coordinator listening on localhost
+     * @param port the port, 0 to pick a free one
+     * @return the coordinator
+     * @throws IOException if the port cannot be bound
+     */
+    public static PerftCoordinator create(int port) throws IOException {
+        return new PerftCoordinator(new ServerSocket(port, 0, InetAddress.getLoopbackAddress()));
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Gets the amount of workers connected and not known to have failed
+     * @return the amount of workers
+     */
+    public int workers() {
+        return workers.size();
+    }
+
+    /**
+     * Starts worker processes with the java executable and classpath of this
+     * process. They connect on their own, see {@link PerftCoordinator#awaitWorkers(int, Duration)}.
+     * @param count the amount of workers
+     * @param cacheMegabytes the size of the perft cache of each worker, 0 for none
+     * @throws IOException if a process cannot be started
+     */
+    public void spawnWorkers(int count, int cacheMegabytes) throws IOException {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        for(int i = 0; i < count; i++) {
+            Process process = new ProcessBuilder(java, "--enable-preview", "-cp", System.getProperty("java.class.path"),
+                    PerftWorker.class.getName(), server.getInetAddress().getHostAddress(),
+                    String.valueOf(this.getPort()), String.valueOf(cacheMegabytes))
+                    .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            processes.add(process);
+        }
+    }
+
+    /**
+     * Accepts workers until the given amount is connected, or the timeout passes
+     * @param count the amount of workers to wait for
+     * @param timeout the longest time to wait
+     * @return the amount of workers connected
+     * @throws IOException if accepting fails
+     */
+    public int awaitWorkers(int count, Duration timeout) throws IOException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while(workers.size() < count) {
+            long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if(left <= 0) break;
+            server.setSoTimeout((int) Math.min(left, Integer.MAX_VALUE));
+            try {
+                workers.add(new Connection(server.accept()));
+            } catch (SocketTimeoutException ex) {
+                break;
+            }
+        }
+        return workers.size();
+    }
+
+    /**
+     * Counts the leaf nodes of the position over the connected workers,
+     * printing the throughput of each worker once done
+     * @param fen the position
+     * @param depth the depth
+     * @param splitDepth the depth to hand out subtrees at, lowered to one less than the depth if needed
+     * @param out the stream to print to
+     * @return the amount of nodes
+     * @throws IllegalStateException if a worker could not count a subtree
+     */
+    public long count(String fen, int depth, int splitDepth, PrintStream out) {
+        BoardMap board = BoardMap.fromFENString(fen);
+        int split = Math.min(splitDepth, depth - 1);
+        if(split < 1 || workers.isEmpty()) {
+            out.println("No subtree to hand out, counting locally");
+            return Perft.create(board).count(depth);
+        }
+
+        Map<String, Long> subtrees = new LinkedHashMap<>();
+        expand(board, MoveGenerator.create(board), split, 0, subtrees);
+        List<Job> jobs = new ArrayList<>(subtrees.size());
+        subtrees.forEach((position, multiplicity) -> jobs.add(new Job(ids.incrementAndGet(), position, multiplicity)));
+        Run run = new Run(depth - split, jobs);
+        out.println(STR."Split at depth \{split} into \{subtrees.size()} subtrees for \{workers.size()} workers");
+
+        long start = System.nanoTime();
+        List<WorkerStats> stats = new ArrayList<>();
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        for(Connection worker : workers) {
+            WorkerStats stat = new WorkerStats(worker.name);
+            stats.add(stat);
+            executor.execute(() -> worker.serve(run, stat));
+        }
+        // workers still counting a copy of a finished subtree are not waited for
+        executor.shutdown();
+        try {
+            while(!run.remaining.await(50, TimeUnit.MILLISECONDS)) {
+                if(executor.isTerminated()) break;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while counting", ex);
+        }
+        if(run.failure.get() != null) throw new IllegalStateException(run.failure.get());
+        // every worker failed or stopped with subtrees put back
+        for(Job job : run.jobs) {
+            if(!job.done.get()) run.complete(job, Perft.create(BoardMap.fromFENString(job.fen)).count(run.depth));
+        }
+        long nanos = System.nanoTime() - start;
+
+        for(WorkerStats stat : stats) out.println(stat);
+        long nodes = run.total.sum();
+        out.println(STR."Nodes searched: \{nodes} in \{nanos / 1_000_000}ms (\{(long) (nodes * 1e9 / Math.max(nanos, 1))} nps)");
+        return nodes;
+    }
+
+    // Collects the positions at the depth, counting how often each is reached
+    private static void expand(BoardMap board, MoveGenerator generator, int depth, int ply, Map<String, Long> subtrees) {
+        if(depth == 0) {
+            subtrees.merge(withoutClocks(board.toFENString()), 1L, Long::sum);
+            return;
+        }
+        MoveList list = generator.generate(ply);
+        for(int i = 0; i < list.size(); i++) {
+            board.makeMove(list.get(i));
+            expand(board, generator, depth - 1, ply + 1, subtrees);
+            board.unmakeMove();
+        }
+    }
+
+    // The move clocks do not change the count, dropping them lets transpositions merge
+    private static String withoutClocks(String fen) {
+        int spaces = 0;
+        for(int i = 0; i < fen.length(); i++) {
+            if(fen.charAt(i) == ' ' && ++spaces == 4) return STR."\{fen.substring(0, i)} 0 1";
+        }
+        return fen;
+    }
+
+    /**
+     * Tells the workers to stop, and closes the connections
+     * @throws IOException if closing the server fails
+     */
+    @Override
+    public void close() throws IOException {
+        for(Connection worker : workers) worker.close();
+        workers.clear();
+        server.close();
+        for(Process process : processes) {
+            try {
+                if(!process.waitFor(5, TimeUnit.SECONDS)) process.destroy();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                process.destroy();
+            }
+        }
+        processes.clear();
+    }
+
+    private static final class Job {
+        final int id;
+        final String fen;
+        final long multiplicity;
+        final AtomicBoolean done = new AtomicBoolean();
+        // the copies handed out, at most two
+        final AtomicInteger copies = new AtomicInteger();
+        volatile long started;
+
+        Job(int id, String fen, long multiplicity) {
+            this.id = id;
+            this.fen = fen;
+            this.multiplicity = multiplicity;
+        }
+    }
+
+    // The state of one count shared by the workers
+    private static final class Run {
+        final int depth;
+        final List<Job> jobs;
+        final Queue<Job> queue;
+        final CountDownLatch remaining;
+        final LongAdder total = new LongAdder();
+        final AtomicReference<String> failure = new AtomicReference<>();
+
+        Run(int depth, List<Job> jobs) {
+            this.depth = depth;
+            this.jobs = jobs;
+            this.queue = new ConcurrentLinkedQueue<>(jobs);
+            this.remaining = new CountDownLatch(jobs.size());
+        }
+
+        // The next subtree to count, or a copy of the oldest one running if none is left
+        Job next() {
+            Job job;
+            while((job = queue.poll()) != null) {
+                if(job.done.get()) continue;
+                job.copies.incrementAndGet();
+                if(job.started == 0) job.started = System.nanoTime();
+                return job;
+            }
+            Job oldest = null;
+            for(Job candidate : jobs) {
+                if(candidate.done.get() || candidate.copies.get() != 1) continue;
+                if(oldest == null || candidate.started < oldest.started) oldest = candidate;
+            }
+            if(oldest == null || !oldest.copies.compareAndSet(1, 2)) return null;
+            return oldest;
+        }
+
+        void complete(Job job, long nodes) {
+            if(!job.done.compareAndSet(false, true)) return;
+            total.add(nodes * job.multiplicity);
+            remaining.countDown();
+        }
+
+        void giveBack(Job job) {
+            job.copies.decrementAndGet();
+            if(!job.done.get()) queue.add(job);
+        }
+
+        void fail(String message) {
+            failure.compareAndSet(null, message);
+            while(remaining.getCount() > 0) remaining.countDown();
+        }
+    }
+
+    private static final class WorkerStats {
+        final String name;
+        final LongAdder jobs = new LongAdder();
+        final LongAdder nodes = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        volatile boolean failed;
+
+        WorkerStats(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            long nodes = this.nodes.sum();
+            long nps = (long) (nodes * 1e9 / Math.max(nanos.sum(), 1));
+            return STR."Worker \{name}: \{jobs.sum()} subtrees, \{nodes} nodes, \{nps} nps\{failed ? " (failed)" : ""}";
+        }
+    }
+
+    private final class Connection {
+        final String name;
+        final Socket socket;
+        final BufferedReader in;
+        final Writer out;
+        // held while a subtree is out, so the replies of one count never reach another
+        final ReentrantLock lock = new ReentrantLock();
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.name = String.valueOf(socket.getRemoteSocketAddress());
+            socket.setTcpNoDelay(true);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        void serve(Run run, WorkerStats stats) {
+            lock.lock();
+            Job job = null;
+            try {
+                while(run.remaining.getCount() > 0 && (job = run.next()) != null) {
+                    out.write(STR."\{JOB} \{job.id} \{run.depth} \{job.fen}\n");
+                    out.flush();
+                    String reply = in.readLine();
+                    if(reply == null) throw new EOFException(STR."worker \{name} disconnected");
+                    String[] parts = reply.split(" ", 4);
+                    if(parts.length < 3 || !parts[1].equals(String.valueOf(job.id))) {
+                        throw new IOException(STR."unexpected reply from worker \{name}: \{reply}");
+                    }
+                    if(parts[0].equals(ERROR)) {
+                        run.fail(STR."worker \{name} failed to count \{job.fen}: \{reply.substring(parts[0].length() + parts[1].length() + 2)}");
+                        return;
+                    }
+                    long nodes = Long.parseLong(parts[2]);
+                    stats.jobs.increment();
+                    stats.nodes.add(nodes);
+                    stats.nanos.add(parts.length > 3 ? Long.parseLong(parts[3]) : 0);
+                    run.complete(job, nodes);
+                    job = null;
+                }
+            } catch (IOException | RuntimeException ex) {
+                stats.failed = true;
+                workers.remove(this);
+                this.close();
+                if(job != null) run.giveBack(job);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void close() {
+            // a worker still counting a copy holds the lock, closing the socket interrupts it
+            if(lock.tryLock()) {
+                try {
+                    out.write(QUIT);
+                    out.write('\n');
+                    out.flush();
+                } catch (IOException ignored) {
+                    // closed below either way
+                } finally {
+                    lock.unlock();
+                }
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // nothing left to release
+            }
+        }
+    }
+}
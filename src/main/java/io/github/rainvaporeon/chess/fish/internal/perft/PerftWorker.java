@@ -0,0 +1,74 @@
+package io.github.rainvaporeon.chess.fish.internal.perft;
+
+import io.github.rainvaporeon.chess.fish.game.utils.Perft;
+import io.github.rainvaporeon.chess.fish.game.utils.PerftCache;
+import io.github.rainvaporeon.chess.fish.game.utils.board.BoardMap;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Counts the subtrees handed out by a {@link PerftCoordinator}, meant to run
+ * in a process of its own started from the same jar:
+ * <pre>
+ * java --enable-preview -cp fish.jar io.github.rainvaporeon.chess.fish.internal.perft.PerftWorker &lt;host&gt; &lt;port&gt; [cache megabytes]
+ * </pre>
+ * The worker connects to the coordinator, counts one subtree at a time and
+ * exits once the coordinator says so or goes away.
+ */
+public final class PerftWorker {
+    private PerftWorker() {}
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.err.println("Usage: PerftWorker <host> <port> [cache megabytes]");
+            System.exit(1);
+            return;
+        }
+        int cacheMegabytes = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        run(args[0], Integer.parseInt(args[1]), cacheMegabytes);
+    }
+
+    /**
+     * Connects to the coordinator and counts subtrees until told to stop
+     * @param host the host of the coordinator
+     * @param port the port of the coordinator
+     * @param cacheMegabytes the size of the perft cache kept across subtrees, 0 for none
+     * @throws IOException if the connection fails
+     */
+    public static void run(String host, int port, int cacheMegabytes) throws IOException {
+        PerftCache cache = cacheMegabytes > 0 ? PerftCache.create(cacheMegabytes) : null;
+        try(Socket socket = new Socket(host, port);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            socket.setTcpNoDelay(true);
+            String line;
+            while((line = in.readLine()) != null) {
+                if(line.equals(PerftCoordinator.QUIT)) return;
+                out.write(answer(line, cache));
+                out.write('\n');
+                out.flush();
+            }
+        }
+    }
+
+    // Answers a job line, "perft <id> <depth> <fen>"
+    private static String answer(String line, PerftCache cache) {
+        String[] parts = line.split(" ", 4);
+        if(parts.length != 4 || !parts[0].equals(PerftCoordinator.JOB)) {
+            return STR."\{PerftCoordinator.ERROR} -1 unknown request \{line}";
+        }
+        String id = parts[1];
+        try {
+            int depth = Integer.parseInt(parts[2]);
+            BoardMap board = BoardMap.fromFENString(parts[3]);
+            Perft perft = cache == null ? Perft.create(board) : Perft.create(board, cache);
+            long start = System.nanoTime();
+            long nodes = perft.count(depth);
+            return STR."\{PerftCoordinator.RESULT} \{id} \{nodes} \{System.nanoTime() - start}";
+        } catch (RuntimeException ex) {
+            return STR."\{PerftCoordinator.ERROR} \{id} \{ex.toString().replace('\n', ' ')}";
+        }
+    }
+}